@@ -0,0 +1,42 @@
+package texter;
+
+/** \brief First-order statistics of the window (from the values, not from the GLCM) */
+public enum FirstOrderFeature
+{
+	MEAN("Mean"),
+	VARIANCE("Variance"),
+	HISTOGRAMENTROPY("HistogramEntropy"); // entropy of the histogram of values
+
+	private final String name;
+
+	FirstOrderFeature( String nam )
+	{
+		name = nam;
+	}
+
+	/** \brief Name as displayed in the dialog and output images */
+	public String getName()
+	{
+		return name;
+	}
+
+	/** \brief Feature from its displayed name, null if unknown */
+	public static FirstOrderFeature fromName( String nam )
+	{
+		for ( FirstOrderFeature f : values() )
+		{
+			if ( f.name.equals(nam) ) return f;
+		}
+		return null;
+	}
+
+	/** \brief All displayed names, in the enum order */
+	public static String[] getNames()
+	{
+		FirstOrderFeature[] all = values();
+		String[] names = new String[all.length];
+		for ( int i = 0; i < all.length; i++ )
+			names[i] = all[i].name;
+		return names;
+	}
+}
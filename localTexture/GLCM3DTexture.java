@@ -0,0 +1,190 @@
+package texter;
+
+/**
+ * \brief Sliding window 3D GLCM over cubic windows, for the 13 directions of the 3D neighborhood.
+ *
+ * The window is wsize x wsize pixels in x,y and wz slices in z (wz taking the anisotropy into account),
+ * it slides along x on a slab of quantized planes (only the window depth planes are needed).
+ * One GLCMTexture (counts and feature sums) is kept by direction, the textures are averaged over the directions.
+ * */
+public class GLCM3DTexture
+{
+	// the 13 directions (one of each symmetric pair)
+	static final int[][] DIRECTIONS = {
+		{1,0,0}, {0,1,0}, {1,1,0}, {1,-1,0},
+		{0,0,1}, {1,0,1}, {-1,0,1}, {0,1,1}, {0,-1,1},
+		{1,1,1}, {1,-1,1}, {-1,1,1}, {-1,-1,1} };
+
+	GLCMTexture[] glcms;
+	int noff;
+	int[] dxs, dys, dzs;
+	byte[][] slab; // quantized planes of the window depth, shared (read-only) between threads
+	int width;
+	int wz;
+	int winx = -1, winy = -1, winsize = -1;
+	int[] ox0, ox1, oy0, oy1, oz0, oz1;
+	int[] xlo, xhi;
+	double[] offres;
+
+	/** \brief Offsets of dist pixels in x,y, and of dist*zratio slices in z (at least 1),
+	 * zratio being the pixel size in x,y divided by the slice spacing */
+	public GLCM3DTexture( double dist, double zratio, int nlev )
+	{
+		noff = DIRECTIONS.length;
+		glcms = new GLCMTexture[noff];
+		dxs = new int[noff];
+		dys = new int[noff];
+		dzs = new int[noff];
+		int d = (int) Math.max( 1, Math.round(dist) );
+		int dz = getOffsetZ( dist, zratio );
+		for ( int o = 0; o < noff; o++ )
+		{
+			// only used for the counts and features, offsets are handled here
+			glcms[o] = new GLCMTexture( 0, 0, nlev );
+			dxs[o] = DIRECTIONS[o][0]*d;
+			dys[o] = DIRECTIONS[o][1]*d;
+			dzs[o] = DIRECTIONS[o][2]*dz;
+		}
+		ox0 = new int[noff];
+		ox1 = new int[noff];
+		oy0 = new int[noff];
+		oy1 = new int[noff];
+		oz0 = new int[noff];
+		oz1 = new int[noff];
+		xlo = new int[noff];
+		xhi = new int[noff];
+	}
+
+	/** \brief Offset in slices of the directions with a z component: dist*zratio, at least 1 */
+	public static int getOffsetZ( double dist, double zratio )
+	{
+		return (int) Math.max( 1, Math.round(dist*zratio) );
+	}
+
+	/** \brief Planes (quantized levels) of the current window depth, and image width */
+	public void setSlab( byte[][] planes, int w )
+	{
+		slab = planes;
+		wz = planes.length;
+		width = w;
+		resetWindow();
+	}
+
+	/** \brief Empty all the co-occurrence histograms */
+	public void resetWindow()
+	{
+		for ( int o = 0; o < noff; o++ )
+			glcms[o].resetWindow();
+		winx = -1;
+		winy = -1;
+	}
+
+	/** \brief Move the window to (wx, wy) in the slab (all its planes).
+	 * If the window only moved right on the same row, only the leaving and entering columns are updated */
+	public void moveWindow( int wx, int wy, int wsize )
+	{
+		int minrange = wsize;
+		for ( int o = 0; o < noff; o++ )
+		{
+			ox0[o] = Math.max(0, -dxs[o]);
+			ox1[o] = wsize - Math.max(0, dxs[o]);
+			oy0[o] = wy + Math.max(0, -dys[o]);
+			oy1[o] = wy + wsize - Math.max(0, dys[o]);
+			oz0[o] = Math.max(0, -dzs[o]);
+			oz1[o] = wz - Math.max(0, dzs[o]);
+			if ( ox1[o] > ox0[o] ) minrange = Math.min( minrange, ox1[o]-ox0[o] );
+		}
+
+		if ( wy == winy && wsize == winsize && wx >= winx && (wx-winx) < minrange )
+		{
+			int shift = wx - winx;
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = winx + ox0[o];
+				xhi[o] = winx + Math.min( ox0[o]+shift, ox1[o] );
+			}
+			scanWindow( -1 );
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = winx + Math.max( ox1[o], ox0[o] );
+				xhi[o] = winx + Math.max( ox1[o], ox0[o] ) + ((ox1[o] > ox0[o]) ? shift : 0);
+			}
+			scanWindow( 1 );
+		}
+		else
+		{
+			resetWindow();
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = wx + ox0[o];
+				xhi[o] = wx + ox1[o];
+			}
+			scanWindow( 1 );
+		}
+		winx = wx;
+		winy = wy;
+		winsize = wsize;
+	}
+
+	/** \brief Add (sign=1) or remove (sign=-1) the pairs starting in columns xlo-xhi of each direction,
+	 * each origin voxel being read once for all directions */
+	void scanWindow( int sign )
+	{
+		int x0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE;
+		int y0 = Integer.MAX_VALUE, y1 = Integer.MIN_VALUE;
+		int z0 = Integer.MAX_VALUE, z1 = Integer.MIN_VALUE;
+		for ( int o = 0; o < noff; o++ )
+		{
+			if ( xhi[o] <= xlo[o] || oy1[o] <= oy0[o] || oz1[o] <= oz0[o] ) continue;
+			x0 = Math.min( x0, xlo[o] );
+			x1 = Math.max( x1, xhi[o] );
+			y0 = Math.min( y0, oy0[o] );
+			y1 = Math.max( y1, oy1[o] );
+			z0 = Math.min( z0, oz0[o] );
+			z1 = Math.max( z1, oz1[o] );
+		}
+
+		for ( int z = z0; z < z1; z++ )
+		{
+			byte[] plane = slab[z];
+			for ( int y = y0; y < y1; y++ )
+			{
+				int off = y*width;
+				for ( int x = x0; x < x1; x++ )
+				{
+					int i = 0xff & plane[off+x];
+					if ( i == 0 ) continue;
+					for ( int o = 0; o < noff; o++ )
+					{
+						if ( x >= xlo[o] && x < xhi[o] && y >= oy0[o] && y < oy1[o] && z >= oz0[o] && z < oz1[o] )
+						{
+							int j = 0xff & slab[z+dzs[o]][off + dys[o]*width + x + dxs[o]];
+							glcms[o].addPair( i, j, sign );
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** \brief Textures of the current window averaged over the directions that have pairs in the window
+	 * (none in z if the window is thinner than the z-offset), written in res. 0 if no direction has pairs */
+	public void getWindowFeatures( GLCMFeature[] feats, double[] res )
+	{
+		int nf = feats.length;
+		if ( offres == null || offres.length != nf ) offres = new double[nf];
+		for ( int f = 0; f < nf; f++ )
+			res[f] = 0;
+		int nvalid = 0;
+		for ( int o = 0; o < noff; o++ )
+		{
+			if ( glcms[o].npairs == 0 ) continue;
+			glcms[o].getWindowFeatures( feats, offres );
+			for ( int f = 0; f < nf; f++ )
+				res[f] += offres[f];
+			nvalid++;
+		}
+		for ( int f = 0; f < nf; f++ )
+			res[f] = ( nvalid > 0 ) ? res[f]/nvalid : 0;
+	}
+}
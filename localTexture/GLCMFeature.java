@@ -0,0 +1,48 @@
+package texter;
+
+/** \brief The textures that can be calculated from a GLCM */
+public enum GLCMFeature
+{
+	ANGULAR2MOMENT("GLCMAngular2Moment"), // homogeneity
+	ENTROPY("GLCMEntropy"), //disorder/complexity
+	INVERSEDIFFMOMENT("GLCMInverseDiffMoment"), // image smoothness
+	CLUSTERTENDENCY("GLCMClusterTendency"), // grouping of pixels of same vals
+	CLUSTERSHADE("GLCMClusterShade"), // skewness, asymetry of image
+	CORRELATION("GLCMCorrelation"),
+	CONTRAST("GLCMContrast"), // local variation
+	HOMOGENEITY("GLCMHomogeneity"), // closeness of elements distributions in GLCM to diagonal
+	VARIANCE("GLCMVariance"); // gray levels spreading
+
+	private final String name;
+
+	GLCMFeature( String nam )
+	{
+		name = nam;
+	}
+
+	/** \brief Name as displayed in the dialog and output images */
+	public String getName()
+	{
+		return name;
+	}
+
+	/** \brief Feature from its displayed name, null if unknown */
+	public static GLCMFeature fromName( String nam )
+	{
+		for ( GLCMFeature f : values() )
+		{
+			if ( f.name.equals(nam) ) return f;
+		}
+		return null;
+	}
+
+	/** \brief All displayed names, in the enum order */
+	public static String[] getNames()
+	{
+		GLCMFeature[] all = values();
+		String[] names = new String[all.length];
+		for ( int i = 0; i < all.length; i++ )
+			names[i] = all[i].name;
+		return names;
+	}
+}
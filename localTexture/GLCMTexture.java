@@ -14,150 +14,241 @@ public class GLCMTexture
 	double angle = 0;
 	double step = 1;
 
+	int nlevels = 256;
+	int[] lut = new int[256]; // gray value -> quantized level
+	double saturated = 0;
+
+	// sliding window: co-occurrence counts of the current window and running sums of the features
+	SparseGLCM counts;
+	int npairs;
+	double sumsq, sumclogc, sumidm, sumhomogen, sumcontrast;
+	double sumi, sumj, sumii, sumjj, sumij, sums, sumss, sumsss;
+	double[] clogc;  // c*log(c) lookup, grown when needed
+	double[] idmw = new double[511];
+	double[] homw = new double[511];
+	int dx, dy;
+
 	public GLCMTexture( double ang, double ste )
+	{
+		this( ang, ste, 256 );
+	}
+
+	/** \brief GLCM on gray values quantized to nlev levels (8 to 256) */
+	public GLCMTexture( double ang, double ste, int nlev )
 	{
 		angle = ang;
 		step = ste;
+		setLevels( nlev );
+		dx = (int) Math.round(step * Math.cos(angle));
+		dy = (int) Math.round(step * Math.sin(angle));
+		for ( int d = -255; d <= 255; d++ )
+		{
+			idmw[d+255] = 1.0/(1.0+d*d);
+			homw[d+255] = 1.0/Math.pow(1+Math.abs(d),2);
+		}
+		clogc = new double[1];
 	}
 
-	public double calcTexture(ImageProcessor ip, Roi roi, String name )
+	/** \brief Quantize the gray values into nlev levels. 
+	 * 0 stays 0 (ignored pixels), 1-255 are spread on levels 1 to nlev-1 */
+	public void setLevels( int nlev )
 	{
-		double[][] glcm = buildGLCM(ip, roi);
-		return getGLCMFeatures( glcm, name );
+		nlevels = nlev;
+		for ( int v = 1; v < 256; v++ )
+			lut[v] = 1 + (v-1)*(nlevels-1)/255;
+		counts = new SparseGLCM( nlevels );
 	}
 
-	public double[][] buildGLCM(ImageProcessor ip, Roi roi)
+	/** \brief Percentage of pixels saturated at each end of the range when quantizing 16-bit and float images, 0 for min-max */
+	public void setSaturated( double sat )
 	{
-		double[][] glcm = new double[256][256];
-		int dx = (int) (step * Math.cos(angle));
-		int dy = (int) (step * Math.sin(angle));
-		int i, j;
-		int pixelCount = 0;
-
-		Rectangle rec = roi.getBounds();
-		// fill matrix
-		for ( int x = rec.x; x< (rec.x+rec.width); x++ )
+		saturated = sat;
+	}
+
+	/** \brief Quantized levels of all the pixels of ip, read directly from its pixel array.
+	 * 8-bit values use the levels lookup table, 16-bit and float values (> 0) are spread on levels 1 to nlev-1 
+	 * between their min and max (or percentiles, see setSaturated) */
+	public byte[] quantize( ImageProcessor ip )
+	{
+		return quantize( ip, null );
+	}
+
+	/** \brief Quantized levels of ip, 16-bit and float values being spread over the given range (min, max), 
+	 * e.g. the range of a whole stack so that the levels are the same in all planes. null to use the range of ip */
+	public byte[] quantize( ImageProcessor ip, double[] range )
+	{
+		int npix = ip.getPixelCount();
+		byte[] lev = new byte[npix];
+		Object pix = ip.getPixels();
+		if ( pix instanceof byte[] )
 		{
-			for ( int y = rec.y; y < (rec.y+rec.height); y++ )
-			{
-				if ( roi.contains(x,y) && roi.contains(x+dx, y+dy) )
-				{
-					if ( ip.getPixel(x,y) > 0 )
-					{
-						i = 0xff & ip.getPixel(x, y);
-						j = 0xff & ip.getPixel( x+dx, y+dy);
-						glcm [i][j]++;		  			
-						glcm [j][i]++;		  			
-						pixelCount+=2;
-					}
-				}
-			}
+			byte[] bpix = (byte[]) pix;
+			for ( int k = 0; k < npix; k++ )
+				lev[k] = (byte) lut[0xff & bpix[k]];
+			return lev;
 		}
 
-		// convert to proba
-		for ( int a = 0; a < 256; a++ )
+		if ( range == null ) range = getRange( ip );
+		double scale = (range[1] > range[0]) ? (nlevels-1)/(range[1]-range[0]) : 0;
+		if ( pix instanceof short[] )
 		{
-			for (int b=0; b < 256; b++ )
-			{
-				glcm[a][b] /= pixelCount;
-			}
+			short[] spix = (short[]) pix;
+			for ( int k = 0; k < npix; k++ )
+				lev[k] = quantizeValue( 0xffff & spix[k], range[0], scale );
 		}
-		return glcm;
-	}
-	
-	// calculate the sum of all glcm elements
-	public double getGLCMFeatures(double[][] glcm, String name)
-	{
-		double asm = 0; // homogeneity
-		double entropy = 0.0; //disorder/complexity
-		double idm = 0.0; // inverse difference moment, image smoothness
-		double clus = 0.0; // cluster tendency (grouping of pixels of same vals)
-		double shade = 0.0; // cluster shade (skewness, asymetry of image)
-		double correlation = 0.0; // correlation
-		double contrast = 0; // contrast or local variation
-		double homogen = 0.0; // homogeneity, closeness of elements distributions in GLCM to diagonal
-		double variance = 0.0; // variance, graly levels spreading
-
-		double[] stats = getMeanDev(glcm);
-
-		for (int i=0; i<256; i++)  
+		else
 		{
-			for (int j=0; j<256; j++) 
-			{
-				asm += glcm[i][j]*glcm[i][j];
-				if ( glcm[i][j] !=0 )
-					entropy -= glcm[i][j]*Math.log(glcm[i][j]);
-				idm += ((1.0/(1.0+(Math.pow(i-j,2))))*glcm[i][j]);
-				clus += Math.pow(i+j-stats[0]-stats[1], 2) * glcm[i][j];
-				shade += Math.pow(i+j-stats[0]-stats[1], 3) * glcm[i][j];
-				correlation += i*j*glcm[i][j];
-				contrast += Math.pow(i-j, 2) * glcm[i][j];
-				homogen += glcm[i][j] / Math.pow(1+Math.abs(i-j),2);
-				variance += Math.pow(i-stats[0], 2)*glcm[i][j] + Math.pow(j-stats[1],2)*glcm[i][j];
-			}
+			float[] fpix = (float[]) pix;
+			for ( int k = 0; k < npix; k++ )
+				lev[k] = quantizeValue( fpix[k], range[0], scale );
 		}
-
-		correlation = (correlation - stats[0]*stats[1])/(stats[2]*stats[3]);
-		
-		if ( name.equals("GLCMAngular2Moment") ) return asm;
-		if ( name.equals("GLCMEntropy") ) return entropy;
-		if ( name.equals("GLCMInverseDiffMoment") ) return idm;
-		if ( name.equals("GLCMClusterTendency") ) return clus;
-		if ( name.equals("GLCMClusterShade") ) return shade;
-		if ( name.equals("GLCMCorrelation") ) return correlation;
-		if ( name.equals("GLCMContrast") ) return contrast;
-		if ( name.equals("GLCMHomogeneity") ) return homogen;
-		if ( name.equals("GLCMVariance") ) return variance;
-		return 0;
+		return lev;
 	}
-	
 
+	/** \brief Level of value v: 0 (ignored) if v <= 0, else between 1 and nlevels-1 */
+	byte quantizeValue( double v, double min, double scale )
+	{
+		if ( !(v > 0) ) return 0;
+		int l = 1 + (int) ((v-min)*scale);
+		return (byte) Math.min( Math.max(l, 1), nlevels-1 );
+	}
 
-	public double[] getMeanDev(double[][] glcm)
+	/** \brief Range of the values > 0 of a 16-bit or float image: min and max, or percentiles.
+	 * Percentiles are read from a 65536 bins histogram of the values */
+	public double[] getRange( ImageProcessor ip )
 	{
-		double [] px = new double [256];
-		double [] py = new double [256];
-		double[] res = new double[4];
-		res[0] = 0.0; //meanx
-		res[1] = 0.0; // meany
-		res[2] = 0.0; //stdx
-		res[3] = 0.0; //stdy
-
-		// First, initialize the arrays to 0
-		for (int i = 0;  i < 256; i++)
+		int npix = ip.getPixelCount();
+		double min = Double.MAX_VALUE;
+		double max = -Double.MAX_VALUE;
+		int n = 0;
+		for ( int k = 0; k < npix; k++ )
 		{
-			px[i] = 0.0;
-			py[i] = 0.0;
+			double v = ip.getf(k);
+			if ( v > 0 )
+			{
+				if ( v < min ) min = v;
+				if ( v > max ) max = v;
+				n++;
+			}
 		}
+		if ( n == 0 || saturated <= 0 || max <= min ) return new double[]{ min, max };
 
-		// sum the glcm rows to Px(i)
-		for (int i = 0;  i < 256; i++) 
+		int nb = 65536;
+		int[] histo = new int[nb];
+		double binw = (max-min)/nb;
+		for ( int k = 0; k < npix; k++ )
+		{
+			double v = ip.getf(k);
+			if ( v > 0 )
+				histo[ Math.min( nb-1, (int)((v-min)/binw) ) ]++;
+		}
+		long nsat = (long) (n*saturated/100.0);
+		double lo = min, hi = max;
+		long cumul = 0;
+		for ( int b = 0; b < nb; b++ )
 		{
-			for (int j = 0; j < 256; j++) 
+			cumul += histo[b];
+			if ( cumul > nsat )
 			{
-				px[i] += glcm [i][j];
+				lo = min + b*binw;
+				break;
 			}
-			res[0] += (i*px[i]);
 		}
-
-		// sum the glcm rows to Py(j)
-		for (int j = 0;  j < 256; j++) 
+		cumul = 0;
+		for ( int b = nb-1; b >= 0; b-- )
 		{
-			for (int i = 0; i < 256; i++) 
+			cumul += histo[b];
+			if ( cumul > nsat )
 			{
-				py[j] += glcm [i][j];
+				hi = min + (b+1)*binw;
+				break;
 			}
-			res[1] += j*py[j];
 		}
+		return new double[]{ lo, hi };
+	}
 
-		// calculate stdx and stdy
-		for (int i = 0;  i < 256; i++) 
+	/** \brief Empty the co-occurrence histogram */
+	public void resetWindow()
+	{
+		counts.clear();
+		npairs = 0;
+		sumsq = 0; sumclogc = 0; sumidm = 0; sumhomogen = 0; sumcontrast = 0;
+		sumi = 0; sumj = 0; sumii = 0; sumjj = 0; sumij = 0; sums = 0; sumss = 0; sumsss = 0;
+	}
+
+	/** \brief Add (sign=1) or remove (sign=-1) the pair of levels (i,j), and its symmetric */
+	void addPair( int i, int j, int sign )
+	{
+		updateCount( i, j, sign );
+		updateCount( j, i, sign );
+	}
+
+	/** \brief Change one element of the co-occurrence histogram and the running sums */
+	void updateCount( int i, int j, int sign )
+	{
+		int c = counts.add( i, j, sign );
+		int nc = c + sign;
+		sumsq += nc*nc - c*c;
+		sumclogc += clogOf(nc) - clogOf(c);
+		addLinearSums( i, j, sign );
+	}
+
+	/** \brief Sums that are linear in the counts */
+	void addLinearSums( int i, int j, double c )
+	{
+		npairs += c;
+		sumidm += c*idmw[i-j+255];
+		sumhomogen += c*homw[i-j+255];
+		sumcontrast += c*(i-j)*(i-j);
+		sumi += c*i;
+		sumj += c*j;
+		sumii += c*i*i;
+		sumjj += c*j*j;
+		sumij += c*i*j;
+		int s = i + j;
+		sums += c*s;
+		sumss += c*s*s;
+		sumsss += c*((double)s)*s*s;
+	}
+
+	/** \brief c*log(c), from the lookup table grown when needed */
+	double clogOf( int c )
+	{
+		if ( c >= clogc.length )
 		{
-			res[2] += ((Math.pow((i-res[0]),2)) * px[i]);
-			res[3] += ((Math.pow((i-res[1]),2)) * py[i]);
+			double[] grown = new double[2*c];
+			for ( int k = 1; k < grown.length; k++ )
+				grown[k] = k*Math.log(k);
+			clogc = grown;
 		}
+		return clogc[c];
+	}
 
-		return res;
+	/** \brief Values of all the given textures in the current window, written in res */
+	public void getWindowFeatures( GLCMFeature[] feats, double[] res )
+	{
+		double n = npairs;
+		double meanx = sumi/n;
+		double meany = sumj/n;
+		double varx = sumii/n - meanx*meanx;
+		double vary = sumjj/n - meany*meany;
+		double m = meanx + meany;
+		
+		for ( int f = 0; f < feats.length; f++ )
+		{
+			switch ( feats[f] )
+			{
+				case ANGULAR2MOMENT: res[f] = sumsq/(n*n); break;
+				case ENTROPY: res[f] = Math.log(n) - sumclogc/n; break;
+				case INVERSEDIFFMOMENT: res[f] = sumidm/n; break;
+				case CLUSTERTENDENCY: res[f] = sumss/n - 2*m*sums/n + m*m; break;
+				case CLUSTERSHADE: res[f] = sumsss/n - 3*m*sumss/n + 3*m*m*sums/n - m*m*m; break;
+				case CORRELATION: res[f] = (sumij/n - meanx*meany)/(varx*vary); break;
+				case CONTRAST: res[f] = sumcontrast/n; break;
+				case HOMOGENEITY: res[f] = sumhomogen/n; break;
+				case VARIANCE: res[f] = varx + vary; break;
+			}
+		}
 	}
 
 }
@@ -0,0 +1,153 @@
+package texter;
+
+import ij.process.*;
+
+/**
+ * \brief Summed-area tables of an image, to get the statistics of any rectangle in constant time.
+ *
+ * Tables of the number of pixels, sum and sum of squares of the values (only pixels > 0, 0 being the ignored background, 
+ * and inside the mask if one is given),
+ * and optionally the integral histogram of the values quantized in nbins bins (histogram of a rectangle in O(nbins)).
+ * Tables are (width+1)*(height+1), element (x,y) is the total over [0,x[ x [0,y[.
+ * Once built, it is only read, so it can be shared between threads.
+ * */
+public class IntegralHistogram
+{
+	int width, height, tw;
+	double shift; // subtracted to all values, limits the loss of precision in the sums
+	int[] count;
+	double[] sum, sumsq;
+	int nbins;
+	int[][] hist; // integral histogram [bin][table index]
+	double hmin, hmax;
+
+	/** \brief Build the tables of the pixels of ip inside mask (one byte by pixel, != 0 inside, null for all),
+	 * with the integral histogram if nb > 0 */
+	public IntegralHistogram( ImageProcessor ip, int nb, byte[] mask )
+	{
+		width = ip.getWidth();
+		height = ip.getHeight();
+		tw = width + 1;
+		int ntab = tw*(height+1);
+		count = new int[ntab];
+		sum = new double[ntab];
+		sumsq = new double[ntab];
+
+		// values range (of non ignored pixels)
+		hmin = Double.MAX_VALUE;
+		hmax = -Double.MAX_VALUE;
+		double tot = 0;
+		int n = 0;
+		for ( int k = 0; k < width*height; k++ )
+		{
+			double v = ip.getf(k);
+			if ( v > 0 && (mask == null || mask[k] != 0) )
+			{
+				hmin = Math.min( hmin, v );
+				hmax = Math.max( hmax, v );
+				tot += v;
+				n++;
+			}
+		}
+		shift = (n > 0) ? tot/n : 0;
+
+		nbins = nb;
+		if ( nbins > 0 )
+			hist = new int[nbins][ntab];
+
+		for ( int y = 0; y < height; y++ )
+		{
+			int rowcount = 0;
+			double rowsum = 0;
+			double rowsumsq = 0;
+			int up = y*tw;
+			int cur = (y+1)*tw;
+			for ( int x = 0; x < width; x++ )
+			{
+				double v = ip.getf(x, y);
+				int bin = -1;
+				if ( v > 0 && (mask == null || mask[y*width+x] != 0) )
+				{
+					double c = v - shift;
+					rowcount++;
+					rowsum += c;
+					rowsumsq += c*c;
+					if ( nbins > 0 ) bin = getBin( v );
+				}
+				count[cur+x+1] = count[up+x+1] + rowcount;
+				sum[cur+x+1] = sum[up+x+1] + rowsum;
+				sumsq[cur+x+1] = sumsq[up+x+1] + rowsumsq;
+				for ( int b = 0; b < nbins; b++ )
+				{
+					// row prefix of bin b = this row of the table minus the row above
+					int rowb = hist[b][cur+x] - hist[b][up+x] + ((b == bin) ? 1 : 0);
+					hist[b][cur+x+1] = hist[b][up+x+1] + rowb;
+				}
+			}
+		}
+	}
+
+	/** \brief Bin of value v in the histogram, between the min and max of the image */
+	public int getBin( double v )
+	{
+		if ( hmax <= hmin ) return 0;
+		int bin = (int) ( (v-hmin)/(hmax-hmin)*nbins );
+		return Math.min( Math.max(bin, 0), nbins-1 );
+	}
+
+	/** \brief Total of table tab over the rectangle */
+	double rect( double[] tab, int x, int y, int w, int h )
+	{
+		return tab[(y+h)*tw+x+w] - tab[y*tw+x+w] - tab[(y+h)*tw+x] + tab[y*tw+x];
+	}
+
+	int rect( int[] tab, int x, int y, int w, int h )
+	{
+		return tab[(y+h)*tw+x+w] - tab[y*tw+x+w] - tab[(y+h)*tw+x] + tab[y*tw+x];
+	}
+
+	/** \brief Number of (non ignored) pixels in the rectangle */
+	public int getCount( int x, int y, int w, int h )
+	{
+		return rect( count, x, y, w, h );
+	}
+
+	/** \brief Mean value in the rectangle */
+	public double getMean( int x, int y, int w, int h )
+	{
+		double n = getCount( x, y, w, h );
+		return rect( sum, x, y, w, h )/n + shift;
+	}
+
+	/** \brief Variance of the values in the rectangle */
+	public double getVariance( int x, int y, int w, int h )
+	{
+		double n = getCount( x, y, w, h );
+		double m = rect( sum, x, y, w, h )/n;
+		return Math.max( 0, rect( sumsq, x, y, w, h )/n - m*m );
+	}
+
+	/** \brief Histogram of the rectangle, written in histo (nbins elements) */
+	public void getHistogram( int x, int y, int w, int h, int[] histo )
+	{
+		for ( int b = 0; b < nbins; b++ )
+			histo[b] = rect( hist[b], x, y, w, h );
+	}
+
+	/** \brief Entropy of the histogram of the rectangle. histo is a work array of nbins elements */
+	public double getEntropy( int x, int y, int w, int h, int[] histo )
+	{
+		getHistogram( x, y, w, h, histo );
+		double n = getCount( x, y, w, h );
+		double entropy = 0;
+		for ( int b = 0; b < nbins; b++ )
+		{
+			if ( histo[b] > 0 )
+			{
+				double p = histo[b]/n;
+				entropy -= p*Math.log(p);
+			}
+		}
+		return entropy;
+	}
+}
@@ -17,6 +17,7 @@ import ij.plugin.filter.*;
 import ij.measure.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.*;
 
 public class LocalTexture implements PlugIn
@@ -26,7 +27,33 @@ public class LocalTexture implements PlugIn
 	int step=5;
 	double angle = 0;
 	double glcmstep = 1;
+	boolean sliding = true;
+	int nthreads = Prefs.getThreads();
+	boolean allplanes = true;
+	boolean restrict = false;
+	byte[] mask; // pixels inside the Roi to analyze, null for the whole image
+	String[] outputs = {"blocks", "bilinear", "bicubic"};
+	String output = "blocks";
+	boolean parplanes = false;
+	int nlevels = 256;
+	double saturated = 0;
+	boolean multi = false;
+	boolean multioff = false;
+	String angles = "0,45,90,135";
+	String distances = "1";
+	boolean peroffset = false;
+	double[] offangles, offdists; // all offsets (radian, pixels)
 	String texture;
+	GLCMFeature[] features;
+	FirstOrderFeature[] firsts;
+	int nbins = 16;
+	int nchan, nglcm;
+	// 3D texture: pixel sizes, window depth and step in slices
+	double scalex = 1;
+	double scaley = 1;
+	double scalez = 1;
+	int wdepth = 1;
+	int zstep = 1;
 
 	/** Be sure there s no calibration */
 	public void initCalibration()
@@ -51,61 +78,761 @@ public class LocalTexture implements PlugIn
 		Font boldy = new Font("SansSerif", Font.BOLD, 12);
 		gd.addNumericField("window_size", wsize, 0);
 		gd.addNumericField("window_step", step, 0);
-		String[] textures = new String[9];
-		textures[0] = "GLCMAngular2Moment";
-		textures[1] = "GLCMEntropy";
-		textures[2] = "GLCMInverseDiffMoment";
-		textures[3] = "GLCMClusterTendency";
-		textures[4] = "GLCMClusterShade";
-		textures[5] = "GLCMCorrelation";
-		textures[6] = "GLCMContrast";
-		textures[7] = "GLCMHomogeneity";
-		textures[8] = "GLCMVariance";
+		String[] textures = getAllNames();
 		gd.addChoice("Texture", textures, textures[1]);
-		gd.addNumericField("GLCM_angle", angle, 2);
+		gd.addCheckbox("several_textures (one channel each)", multi);
+		gd.addNumericField("GLCM_angle (radians)", angle, 2);
 		gd.addNumericField("GLCM_step", glcmstep, 1);
+		gd.addCheckbox("several_offsets (average over the angles and distances below)", multioff);
+		gd.addStringField("GLCM_angles (degrees)", angles);
+		gd.addStringField("GLCM_distances", distances);
+		gd.addCheckbox("per_offset_textures (one channel each)", peroffset);
+		String[] levels = {"8", "16", "32", "64", "256"};
+		gd.addChoice("gray_levels", levels, ""+nlevels);
+		gd.addNumericField("saturated_% (16/32-bit levels, 0 for min-max)", saturated, 2);
+		gd.addCheckbox("sliding_window (update GLCM incrementally)", sliding);
+		gd.addNumericField("histogram_bins (first-order)", nbins, 0);
+		gd.addNumericField("threads", nthreads, 0);
+		gd.addChoice("output (window values to pixels)", outputs, output);
+		gd.addCheckbox("all_planes (whole stack/hyperstack)", allplanes);
+		gd.addCheckbox("restrict_to_roi (first/selected Roi in RoiManager, or image Roi)", restrict);
+		gd.addCheckbox("parallel_over_planes (one thread by plane)", parplanes);
 		gd.showDialog();
 		if (gd.wasCanceled()) return false;
 
 		wsize = (int) gd.getNextNumber();
 		step = (int) gd.getNextNumber();
 		texture = gd.getNextChoice();
+		multi = gd.getNextBoolean();
 		angle = gd.getNextNumber();
 		glcmstep = gd.getNextNumber();
+		multioff = gd.getNextBoolean();
+		angles = gd.getNextString();
+		distances = gd.getNextString();
+		peroffset = gd.getNextBoolean() && multioff;
+		nlevels = Integer.parseInt( gd.getNextChoice() );
+		saturated = gd.getNextNumber();
+		sliding = gd.getNextBoolean();
+		nbins = Math.max( 1, (int) gd.getNextNumber() );
+		nthreads = Math.max( 1, (int) gd.getNextNumber() );
+		output = gd.getNextChoice();
+		allplanes = gd.getNextBoolean();
+		restrict = gd.getNextBoolean();
+		parplanes = gd.getNextBoolean();
+		if ( !makeOffsets() ) return false;
+
+		if ( !multi )
+		{
+			GLCMFeature feat = GLCMFeature.fromName(texture);
+			features = (feat != null) ? new GLCMFeature[]{ feat } : new GLCMFeature[0];
+			FirstOrderFeature first = FirstOrderFeature.fromName(texture);
+			firsts = (first != null) ? new FirstOrderFeature[]{ first } : new FirstOrderFeature[0];
+			return true;
+		}
+		return chooseFeatures( true );
+	}
+
+	/** \brief Dialog window of the 3D texture: the window and GLCM z-offsets are scaled by the image calibration */
+	public boolean getParameters3D()
+	{
+		GenericDialog gd = new GenericDialog("Options 3D", IJ.getInstance() );
+		Font boldy = new Font("SansSerif", Font.BOLD, 12);
+		gd.addNumericField("window_size (pixels in x,y)", wsize, 0);
+		gd.addNumericField("window_step", step, 0);
+		String[] textures = GLCMFeature.getNames();
+		gd.addChoice("Texture", textures, textures[1]);
+		gd.addCheckbox("several_textures (one channel each)", multi);
+		gd.addNumericField("GLCM_step", glcmstep, 1);
+		String[] levels = {"8", "16", "32", "64", "256"};
+		gd.addChoice("gray_levels", levels, ""+nlevels);
+		gd.addNumericField("threads", nthreads, 0);
+		gd.addMessage("Images scale:", boldy);	
+		Calibration cal = imp.getCalibration();
+		if (cal == null ) 
+		{
+			cal = new Calibration(imp);
+		}
+		gd.addNumericField("In_x: 1 pixel =", cal.pixelWidth, 4);
+		gd.addNumericField("In_y: 1 pixel =", cal.pixelHeight, 4);
+		gd.addNumericField("In_z: 1 pixel =", cal.pixelDepth, 4);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		wsize = (int) gd.getNextNumber();
+		step = (int) gd.getNextNumber();
+		texture = gd.getNextChoice();
+		multi = gd.getNextBoolean();
+		glcmstep = gd.getNextNumber();
+		nlevels = Integer.parseInt( gd.getNextChoice() );
+		nthreads = Math.max( 1, (int) gd.getNextNumber() );
+		scalex = gd.getNextNumber();	
+		scaley = gd.getNextNumber();	
+		scalez = gd.getNextNumber();
+		makeDepth();
+
+		firsts = new FirstOrderFeature[0];
+		if ( !multi )
+		{
+			features = new GLCMFeature[]{ GLCMFeature.fromName(texture) };
+			return true;
+		}
+		return chooseFeatures( false );
+	}
+
+	/** \brief Window depth and step in slices, covering the same physical size as in x,y.
+	 * The depth is at least the GLCM z-offset plus one, so that the directions in z have pairs */
+	public void makeDepth()
+	{
+		double zratio = scalex/scalez;
+		wdepth = (int) Math.max( 1 + GLCM3DTexture.getOffsetZ(glcmstep, zratio), Math.round(wsize*zratio) );
+		zstep = (int) Math.max( 1, Math.round(step*zratio) );
+	}
+
+	/** \brief Names of the GLCM textures followed by the first-order statistics */
+	public String[] getAllNames()
+	{
+		String[] glcmnames = GLCMFeature.getNames();
+		String[] firstnames = FirstOrderFeature.getNames();
+		String[] names = new String[glcmnames.length+firstnames.length];
+		System.arraycopy( glcmnames, 0, names, 0, glcmnames.length );
+		System.arraycopy( firstnames, 0, names, glcmnames.length, firstnames.length );
+		return names;
+	}
+
+	/** \brief List the GLCM offsets: the single (angle, step) or all combinations of the angles and distances */
+	public boolean makeOffsets()
+	{
+		if ( !multioff )
+		{
+			offangles = new double[]{ angle };
+			offdists = new double[]{ glcmstep };
+			return true;
+		}
+		String[] angs = Tools.split( angles, " ,;" );
+		String[] dists = Tools.split( distances, " ,;" );
+		int noff = angs.length * dists.length;
+		offangles = new double[noff];
+		offdists = new double[noff];
+		int o = 0;
+		for ( int a = 0; a < angs.length; a++ )
+		{
+			for ( int d = 0; d < dists.length; d++ )
+			{
+				offangles[o] = Tools.parseDouble( angs[a] ) * Math.PI/180.0;
+				offdists[o] = Tools.parseDouble( dists[d] );
+				if ( Double.isNaN(offangles[o]) || Double.isNaN(offdists[o]) )
+				{
+					IJ.error("Could not read GLCM angles/distances");
+					return false;
+				}
+				o++;
+			}
+		}
 		return true;
 	}
 
-	public void getTexture()
+	/** \brief Rasterize once the Roi to analyze (selected or first Roi of the RoiManager, else the image Roi) */
+	public boolean makeMask()
+	{
+		mask = null;
+		if ( !restrict ) return true;
+		Roi roi = imp.getRoi();
+		RoiManager rm = RoiManager.getInstance();
+		if ( rm != null && rm.getCount() > 0 )
+		{
+			int sel = rm.getSelectedIndex();
+			roi = rm.getRoi( (sel >= 0) ? sel : 0 );
+		}
+		if ( roi == null || !roi.isArea() )
+		{
+			IJ.error("Need an area Roi to restrict the texture to");
+			return false;
+		}
+		ByteProcessor msk = new ByteProcessor( imp.getWidth(), imp.getHeight() );
+		msk.setValue( 255 );
+		msk.fill( roi );
+		mask = (byte[]) msk.getPixels();
+		return true;
+	}
+
+	/** \brief Dialog to select the textures calculated together (GLCM textures only if !withfirst) */
+	public boolean chooseFeatures( boolean withfirst )
+	{
+		GenericDialog gd = new GenericDialog("Textures", IJ.getInstance() );
+		String[] textures = withfirst ? getAllNames() : GLCMFeature.getNames();
+		boolean[] selected = new boolean[textures.length];
+		Arrays.fill( selected, true );
+		gd.addCheckboxGroup(4, 3, textures, selected);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		Vector<GLCMFeature> chosen = new Vector<GLCMFeature>();
+		Vector<FirstOrderFeature> chosenfirst = new Vector<FirstOrderFeature>();
+		for ( int f = 0; f < textures.length; f++ )
+		{
+			if ( gd.getNextBoolean() )
+			{
+				if ( f < GLCMFeature.values().length )
+					chosen.add( GLCMFeature.values()[f] );
+				else
+					chosenfirst.add( FirstOrderFeature.values()[f-GLCMFeature.values().length] );
+			}
+		}
+		if ( chosen.size() + chosenfirst.size() == 0 ) return false;
+		features = chosen.toArray( new GLCMFeature[chosen.size()] );
+		firsts = chosenfirst.toArray( new FirstOrderFeature[chosenfirst.size()] );
+		texture = "Textures";
+		return true;
+	}
+
+	/** \brief Create the output image, one channel by texture (averaged over offsets), 
+	 * then one by texture and offset if asked, then one by first-order statistic.
+	 * With all_planes, the textures of each input channel are consecutive channels of the output, for all slices and frames */
+	public void createOutput()
+	{
+		int nf = features.length;
+		nglcm = nf * ( peroffset ? offangles.length+1 : 1 );
+		nchan = nglcm + firsts.length;
+		int inc = allplanes ? imp.getNChannels() : 1;
+		int nz = allplanes ? imp.getNSlices() : 1;
+		int nt = allplanes ? imp.getNFrames() : 1;
+		itext = IJ.createImage(""+texture, "32-bit black", imp.getWidth(), imp.getHeight(), inc*nchan, nz, nt);
+		for ( int c = 0; c < nchan; c++ )
+		{
+			String lab;
+			if ( c < nglcm )
+			{
+				lab = features[c%nf].getName();
+				if ( c >= nf )
+				{
+					int o = c/nf - 1;
+					lab += "_a"+IJ.d2s(offangles[o]*180.0/Math.PI, 0)+"_d"+IJ.d2s(offdists[o], 1);
+				}
+			}
+			else
+				lab = firsts[c-nglcm].getName();
+			for ( int ic = 1; ic <= inc; ic++ )
+			{
+				for ( int z = 1; z <= nz; z++ )
+				{
+					for ( int t = 1; t <= nt; t++ )
+					{
+						int ind = itext.getStackIndex( (ic-1)*nchan+c+1, z, t );
+						itext.getStack().setSliceLabel( ((inc > 1) ? "C"+ic+"_" : "")+lab, ind );
+					}
+				}
+			}
+		}
+		if ( inc*nchan > 1 )
+			itext = new CompositeImage( itext, IJ.GRAYSCALE );
+	}
+
+	/** \brief Create the 3D output image: one channel by texture, same slices as the input */
+	public void createOutput3D()
+	{
+		nglcm = features.length;
+		nchan = nglcm;
+		int nz = imp.getNSlices();
+		itext = IJ.createImage(""+texture+"3D", "32-bit black", imp.getWidth(), imp.getHeight(), nchan, nz, 1);
+		for ( int c = 0; c < nchan; c++ )
+		{
+			for ( int z = 1; z <= nz; z++ )
+				itext.getStack().setSliceLabel( features[c].getName(), itext.getStackIndex(c+1, z, 1) );
+		}
+		if ( nchan > 1 )
+			itext = new CompositeImage( itext, IJ.GRAYSCALE );
+	}
+
+	/** \brief Write the textures of one window in each channel, in the step x step block around its center */
+	public void setWindow( float[][] out, int i, int j, double[] res )
+	{
+		for ( int f = 0; f < res.length; f++ )
+			setWindow( out[f], i, j, res[f] );
+	}
+
+	/** \brief Write the value of one window in the step x step block around its center */
+	public void setWindow( float[] out, int i, int j, double val )
 	{
-		GLCMTexture glcm = new GLCMTexture(angle, glcmstep);
-		ImageProcessor ip = itext.getProcessor();
+		int width = imp.getWidth();
+		int x0 = Math.max( 0, i+wsize/2-step/2 );
+		int y0 = Math.max( 0, j+wsize/2-step/2 );
+		int x1 = Math.min( width, i+wsize/2-step/2+step );
+		int y1 = Math.min( imp.getHeight(), j+wsize/2-step/2+step );
+		for ( int y = y0; y < y1; y++ )
+			Arrays.fill( out, y*width+x0, y*width+x1, (float) val );
+	}
+
+	/** \brief Does the step x step block written for the window at (i,j) (see setWindow) contain pixels of the mask */
+	public boolean blockInMask( int i, int j )
+	{
+		int width = imp.getWidth();
+		int x0 = Math.max( 0, i+wsize/2-step/2 );
+		int y0 = Math.max( 0, j+wsize/2-step/2 );
+		int x1 = Math.min( width, i+wsize/2-step/2+step );
+		int y1 = Math.min( imp.getHeight(), j+wsize/2-step/2+step );
+		for ( int y = y0; y < y1; y++ )
+			for ( int x = x0; x < x1; x++ )
+				if ( mask[y*width+x] != 0 ) return true;
+		return false;
+	}
+
+	/** \brief Write the textures of one window in each grid (one point by window) */
+	public void setGrid( float[][] grid, int i, int j, double[] res )
+	{
+		int ind = (j/step)*getGridWidth() + i/step;
+		for ( int f = 0; f < res.length; f++ )
+			grid[f][ind] = (float) res[f];
+	}
+
+	/** \brief Number of windows in x */
+	public int getGridWidth()
+	{
+		return Math.max( 0, (imp.getWidth()-wsize+step-1)/step );
+	}
+
+	/** \brief Number of windows in y */
+	public int getGridHeight()
+	{
+		return Math.max( 0, (imp.getHeight()-wsize+step-1)/step );
+	}
+
+	/** \brief Fill the full resolution image out from the values at the window centers (grid), 
+	 * by bilinear or bicubic interpolation. Pixels outside of the grid get the value of the closest grid point */
+	public void interpolateGrid( float[] grid, float[] out )
+	{
+		int gw = getGridWidth();
+		int gh = getGridHeight();
+		if ( gw == 0 || gh == 0 ) return;
+		int width = imp.getWidth();
+		boolean cubic = output.equals("bicubic");
+		for ( int y = 0; y < imp.getHeight(); y++ )
+		{
+			double gy = Math.min( Math.max( (double)(y - wsize/2)/step, 0 ), gh-1 );
+			for ( int x = 0; x < width; x++ )
+			{
+				double gx = Math.min( Math.max( (double)(x - wsize/2)/step, 0 ), gw-1 );
+				out[y*width+x] = (float) ( cubic ? bicubic(grid, gw, gh, gx, gy) : bilinear(grid, gw, gh, gx, gy) );
+			}
+		}
+	}
+
+	/** \brief Replace the empty grid points (NaN: window outside the Roi or without pairs) by the mean of their non-empty 4-neighbors,
+	 * repeated until the grid is full, so that the interpolation inside the Roi only uses valid windows. 0 if all are empty */
+	public void fillEmptyGrid( float[] grid )
+	{
+		int gw = getGridWidth();
+		int gh = getGridHeight();
+		float[] prev = new float[grid.length];
+		boolean empty = true;
+		while ( empty )
+		{
+			System.arraycopy( grid, 0, prev, 0, grid.length );
+			empty = false;
+			boolean changed = false;
+			for ( int y = 0; y < gh; y++ )
+			{
+				for ( int x = 0; x < gw; x++ )
+				{
+					int ind = y*gw + x;
+					if ( !Float.isNaN(prev[ind]) ) continue;
+					double sum = 0;
+					int n = 0;
+					if ( x > 0 && !Float.isNaN(prev[ind-1]) ) { sum += prev[ind-1]; n++; }
+					if ( x < gw-1 && !Float.isNaN(prev[ind+1]) ) { sum += prev[ind+1]; n++; }
+					if ( y > 0 && !Float.isNaN(prev[ind-gw]) ) { sum += prev[ind-gw]; n++; }
+					if ( y < gh-1 && !Float.isNaN(prev[ind+gw]) ) { sum += prev[ind+gw]; n++; }
+					if ( n > 0 )
+					{
+						grid[ind] = (float) (sum/n);
+						changed = true;
+					}
+					else
+						empty = true;
+				}
+			}
+			if ( empty && !changed )
+			{
+				Arrays.fill( grid, 0 );
+				return;
+			}
+		}
+	}
+
+	public double bilinear( float[] grid, int gw, int gh, double gx, double gy )
+	{
+		int x0 = Math.min( (int) gx, gw-1 );
+		int y0 = Math.min( (int) gy, gh-1 );
+		int x1 = Math.min( x0+1, gw-1 );
+		int y1 = Math.min( y0+1, gh-1 );
+		double fx = gx - x0;
+		double fy = gy - y0;
+		double top = (1-fx)*grid[y0*gw+x0] + fx*grid[y0*gw+x1];
+		double bottom = (1-fx)*grid[y1*gw+x0] + fx*grid[y1*gw+x1];
+		return (1-fy)*top + fy*bottom;
+	}
+
+	/** \brief Bicubic (Catmull-Rom) interpolation, grid borders repeated */
+	public double bicubic( float[] grid, int gw, int gh, double gx, double gy )
+	{
+		int x0 = (int) gx;
+		int y0 = (int) gy;
+		double fx = gx - x0;
+		double fy = gy - y0;
+		double res = 0;
+		for ( int b = -1; b <= 2; b++ )
+		{
+			int yy = Math.min( Math.max( y0+b, 0 ), gh-1 );
+			double row = 0;
+			for ( int a = -1; a <= 2; a++ )
+			{
+				int xx = Math.min( Math.max( x0+a, 0 ), gw-1 );
+				row += cubic( a-fx )*grid[yy*gw+xx];
+			}
+			res += cubic( b-fy )*row;
+		}
+		return res;
+	}
+
+	/** \brief Catmull-Rom kernel */
+	double cubic( double t )
+	{
+		t = Math.abs(t);
+		if ( t < 1 ) return 1.5*t*t*t - 2.5*t*t + 1;
+		if ( t < 2 ) return -0.5*t*t*t + 2.5*t*t - 4*t + 2;
+		return 0;
+	}
+
+	/** \brief Calculate the textures of all windows starting at row j.
+	 * With the sliding option, one GLCM histogram follows the window along the row:
+	 * only the columns leaving and entering the window are updated at each step */
+	public void getTextureRow( MultiGLCMTexture glcm, IntegralHistogram integral, float[][] out, int j, double[] res, double[] glcmres, int[] histo )
+	{
+		glcm.resetWindow();
 		for ( int i = 0; i < (imp.getWidth()-wsize); i+= step )
 		{
-			for ( int j = 0; j < (imp.getHeight()-wsize); j+= step )
+			// block of the window outside of the Roi: nothing to write
+			if ( mask != null && output.equals("blocks") && !blockInMask(i, j) ) continue;
+			// window centered outside of the Roi: empty grid point (filled from its neighbors)
+			if ( mask != null && !output.equals("blocks") && mask[(j+wsize/2)*imp.getWidth()+i+wsize/2] == 0 )
+			{
+				Arrays.fill( res, Double.NaN );
+				setGrid( out, i, j, res );
+				continue;
+			}
+			if ( nglcm > 0 )
+			{
+				if ( !sliding ) glcm.resetWindow();
+				glcm.moveWindow(i, j, wsize);
+				glcm.getWindowFeatures(features, glcmres);
+				System.arraycopy( glcmres, 0, res, 0, nglcm );
+			}
+			for ( int f = 0; f < firsts.length; f++ )
+				res[nglcm+f] = getFirstOrder( integral, firsts[f], i, j, histo );
+			if ( output.equals("blocks") )
+				setWindow( out, i, j, res );
+			else
+				setGrid( out, i, j, res );
+		}
+	}
+
+	/** \brief First-order statistic of the window at (i,j), from the integral tables */
+	public double getFirstOrder( IntegralHistogram integral, FirstOrderFeature first, int i, int j, int[] histo )
+	{
+		switch ( first )
+		{
+			case MEAN: return integral.getMean( i, j, wsize, wsize );
+			case VARIANCE: return integral.getVariance( i, j, wsize, wsize );
+			case HISTOGRAMENTROPY: return integral.getEntropy( i, j, wsize, wsize, histo );
+		}
+		return 0;
+	}
+
+	/** \brief Run work on nthr threads (in this one if only one) */
+	public void runThreads( Runnable work, int nthr )
+	{
+		if ( nthr == 1 )
+			work.run();
+		else
+		{
+			Thread[] threads = ThreadUtil.createThreadArray( nthr );
+			for ( int t = 0; t < threads.length; t++ )
+				threads[t] = new Thread( work );
+			ThreadUtil.startAndJoin( threads );
+		}
+	}
+
+	/** \brief Calculate the textures of one plane (ip) in the out arrays (one by texture channel), 
+	 * by bands of window rows on nthr threads. 16-bit and float values are quantized over range (null for the range of ip).
+	 * Each thread has its own GLCM and only reads the quantized plane, output blocks of different rows don't overlap */
+	public void getTexture( ImageProcessor ip, double[] range, float[][] out, int nthr, final boolean progress )
+	{
+		// interpolated output: calculate the window values on a grid (one point by window) first
+		final float[][] target;
+		if ( output.equals("blocks") )
+			target = out;
+		else
+			target = new float[nchan][getGridWidth()*getGridHeight()];
+
+		GLCMTexture quant = new GLCMTexture(angle, glcmstep, nlevels);
+		quant.setSaturated( saturated );
+		final byte[] lev = quant.quantize( ip, range );
+		// statistics of the values, built once and read by all threads
+		final IntegralHistogram integral = ( firsts.length > 0 ) ? new IntegralHistogram( ip, needHistogram() ? nbins : 0, mask ) : null;
+
+		final int nrows = Math.max( 0, (imp.getHeight()-wsize+step-1)/step );
+		final int band = Math.max( 1, nrows/(4*nthr) );
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Runnable work = new Runnable()
+		{
+			public void run()
+			{
+				MultiGLCMTexture glcm = new MultiGLCMTexture(offangles, offdists, nlevels);
+				glcm.setImage( lev, imp.getWidth() );
+				glcm.setMask( mask );
+				double[] res = new double[nchan];
+				double[] glcmres = new double[nglcm];
+				int[] histo = new int[nbins];
+				for ( int b = next.getAndAdd(band); b < nrows; b = next.getAndAdd(band) )
+				{
+					int e = Math.min( nrows, b+band );
+					for ( int r = b; r < e; r++ )
+						getTextureRow( glcm, integral, target, r*step, res, glcmres, histo );
+					if ( progress ) IJ.showProgress( done.addAndGet(e-b), nrows );
+				}
+			}
+		};
+		runThreads( work, nthr );
+
+		if ( target != out )
+		{
+			for ( int f = 0; f < nchan; f++ )
+			{
+				fillEmptyGrid( target[f] );
+				interpolateGrid( target[f], out[f] );
+			}
+		}
+		
+		if ( mask != null )
+		{
+			for ( int f = 0; f < nchan; f++ )
 			{
-				Roi rect = new Roi( i, j, wsize, wsize );
-				rect.setImage(imp);
-				imp.setRoi(rect);
-				double res = glcm.calcTexture(imp.getProcessor(), rect, texture);
-				int x = (int) (i+wsize/2);	
-				int y = (int) (j+wsize/2);	
-				Roi wind = new Roi( x-step/2, y-step/2, step, step );
-				ip.setRoi(wind);
-				ip.set(res);
+				for ( int k = 0; k < mask.length; k++ )
+					if ( mask[k] == 0 ) out[f][k] = 0;
 			}
+		}
+	}
+
+	/** \brief Output arrays (one by texture) of input plane (c, z, t) */
+	public float[][] getOutput( int c, int z, int t )
+	{
+		float[][] out = new float[nchan][];
+		for ( int f = 0; f < nchan; f++ )
+		{
+			int ind = allplanes ? itext.getStackIndex( (c-1)*nchan+f+1, z, t ) : f+1;
+			out[f] = (float[]) itext.getStack().getPixels( ind );
+		}
+		return out;
+	}
+
+	/** \brief Number of planes processed at once with parallel_over_planes: nthreads, limited when the integral histogram is needed
+	 * (nbins x image size table for each plane in progress) so that these tables take at most half of the free memory */
+	public int getPlanesInFlight()
+	{
+		if ( !parplanes ) return 1;
+		if ( !needHistogram() ) return nthreads;
+		long table = 4L*nbins*(imp.getWidth()+1)*(imp.getHeight()+1);
+		long free = IJ.maxMemory() - IJ.currentMemory();
+		return (int) Math.max( 1, Math.min( nthreads, free/2/table ) );
+	}
+
+	/** \brief Calculate the textures of the current plane, or of all the planes of the (hyper)stack, one after the other.
+	 * Only the working buffers of the planes being processed are allocated.
+	 * Planes are either processed one by one with the threads working on bands of rows, or several in parallel 
+	 * (see getPlanesInFlight) with the threads shared between them */
+	public void getTexture()
+	{
+		if ( !allplanes || imp.getStackSize() == 1 )
+		{
+			getTexture( imp.getProcessor(), null, getOutput(1, 1, 1), nthreads, true );
+		}
+		else
+		{
+			final ImageStack stack = imp.getStack();
+			final int nplanes = imp.getStackSize();
+			// same gray levels in all the slices and frames of a channel
+			GLCMTexture quant = new GLCMTexture(angle, glcmstep, nlevels);
+			quant.setSaturated( saturated );
+			final double[][] ranges = new double[imp.getNChannels()][];
+			for ( int c = 1; c <= imp.getNChannels(); c++ )
+				ranges[c-1] = getStackRange( quant, c, true );
+			final int inflight = getPlanesInFlight();
+			final int bandthreads = Math.max( 1, nthreads/inflight );
+			final AtomicInteger next = new AtomicInteger(1);
+			final AtomicInteger done = new AtomicInteger(0);
+			Runnable work = new Runnable()
+			{
+				public void run()
+				{
+					for ( int n = next.getAndIncrement(); n <= nplanes; n = next.getAndIncrement() )
+					{
+						ImageProcessor ip;
+						synchronized ( stack ) 
+						{
+							ip = stack.getProcessor(n);
+						}
+						int[] pos = imp.convertIndexToPosition(n);
+						getTexture( ip, ranges[pos[0]-1], getOutput(pos[0], pos[1], pos[2]), bandthreads, false );
+						IJ.showStatus("Texture of plane "+done.incrementAndGet()+"/"+nplanes);
+						IJ.showProgress( done.get(), nplanes );
+					}
+				}
+			};
+			runThreads( work, inflight );
+		}
 		itext.updateAndDraw();
 		IJ.resetMinAndMax(itext);
 		itext.show();
+	}
+
+	/** \brief Range of the values of channel c over all its slices, and all frames if allframes (else the current frame), 
+	 * to quantize all these planes on the same levels. Planes are read one by one, null for 8-bit images */
+	public double[] getStackRange( GLCMTexture quant, int c, boolean allframes )
+	{
+		if ( imp.getBitDepth() == 8 ) return null;
+		ImageStack stack = imp.getStack();
+		double[] range = { Double.MAX_VALUE, -Double.MAX_VALUE };
+		int t0 = allframes ? 1 : imp.getFrame();
+		int t1 = allframes ? imp.getNFrames() : imp.getFrame();
+		for ( int t = t0; t <= t1; t++ )
+		{
+			for ( int z = 1; z <= imp.getNSlices(); z++ )
+			{
+				double[] zrange = quant.getRange( stack.getProcessor( imp.getStackIndex(c, z, t) ) );
+				range[0] = Math.min( range[0], zrange[0] );
+				range[1] = Math.max( range[1], zrange[1] );
+			}
 		}
+		return range;
 	}
 
+	/** \brief Calculate the 3D textures of the current channel and frame, in cubic windows of wsize x wsize x wdepth.
+	 * The windows move in one pass along z: only the wdepth quantized slices of the current window depth are kept,
+	 * slices leaving the window are dropped and entering ones are quantized. 
+	 * In each slab, the threads work on bands of window rows, with their own sliding 3D GLCM */
+	public void getTexture3D()
+	{
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		int nz = imp.getNSlices();
+		ImageStack stack = imp.getStack();
+		GLCMTexture quant = new GLCMTexture(0, glcmstep, nlevels);
+		double[] range = getStackRange( quant, imp.getChannel(), false );
+
+		final int wd = Math.min( wdepth, nz );
+		int nzwin = (nz-wd)/zstep + 1;
+		final int nrows = Math.max( 0, (height-wsize+step-1)/step );
+		final int band = Math.max( 1, nrows/(4*nthreads) );
+		final GLCM3DTexture[] glcms = new GLCM3DTexture[nthreads];
+		for ( int t = 0; t < nthreads; t++ )
+			glcms[t] = new GLCM3DTexture( glcmstep, scalex/scalez, nlevels );
+
+		byte[][] planes = new byte[nz][]; // quantized slices, only the current window depth is filled
+		for ( int k = 0; k < nzwin; k++ )
+		{
+			int z0 = k*zstep;
+			for ( int z = 0; z < z0; z++ )
+				planes[z] = null;
+			final byte[][] slab = new byte[wd][];
+			for ( int d = 0; d < wd; d++ )
+			{
+				if ( planes[z0+d] == null )
+					planes[z0+d] = quant.quantize( stack.getProcessor( imp.getStackIndex(imp.getChannel(), z0+d+1, imp.getFrame()) ), range );
+				slab[d] = planes[z0+d];
+			}
+
+			// output slices filled by this window depth
+			int zs = Math.max( 0, z0+wd/2-zstep/2 );
+			int ze = Math.min( nz, z0+wd/2-zstep/2+zstep );
+			final float[][][] out = new float[nchan][ze-zs][];
+			for ( int f = 0; f < nchan; f++ )
+			{
+				for ( int z = zs; z < ze; z++ )
+					out[f][z-zs] = (float[]) itext.getStack().getPixels( itext.getStackIndex(f+1, z+1, 1) );
+			}
+
+			final AtomicInteger next = new AtomicInteger(0);
+			final AtomicInteger slot = new AtomicInteger(0);
+			runThreads( new Runnable()
+			{
+				public void run()
+				{
+					// one GLCM by thread, kept from slab to slab
+					GLCM3DTexture glcm = glcms[slot.getAndIncrement()];
+					glcm.setSlab( slab, width );
+					double[] res = new double[nchan];
+					for ( int b = next.getAndAdd(band); b < nrows; b = next.getAndAdd(band) )
+					{
+						int e = Math.min( nrows, b+band );
+						for ( int r = b; r < e; r++ )
+						{
+							int j = r*step;
+							glcm.resetWindow();
+							for ( int i = 0; i < (width-wsize); i+= step )
+							{
+								glcm.moveWindow( i, j, wsize );
+								glcm.getWindowFeatures( features, res );
+								for ( int f = 0; f < nchan; f++ )
+								{
+									for ( int z = 0; z < out[f].length; z++ )
+										setWindow( out[f][z], i, j, res[f] );
+								}
+							}
+						}
+					}
+				}
+			}, nthreads );
+			IJ.showStatus("3D texture of slab "+(k+1)+"/"+nzwin);
+			IJ.showProgress( k+1, nzwin );
+		}
+		itext.updateAndDraw();
+		IJ.resetMinAndMax(itext);
+		itext.show();
+	}
+
+	/** \brief Is the integral histogram needed (or only the sums) */
+	public boolean needHistogram()
+	{
+		for ( int f = 0; f < firsts.length; f++ )
+			if ( firsts[f] == FirstOrderFeature.HISTOGRAMENTROPY ) return true;
+		return false;
+	}
 
 	public void run(String arg)
 	{
 		imp = IJ.getImage();
-		getParameters();
+		if ( imp.getBitDepth() == 24 )
+		{
+			IJ.error("RGB images are not supported, convert to 8, 16 or 32-bit");
+			return;
+		}
+		if ( arg.equals("3d") )
+		{
+			if ( imp.getNSlices() == 1 )
+			{
+				IJ.error("3D texture needs a z-stack");
+				return;
+			}
+			if ( !getParameters3D() ) return;
+			initCalibration();
+			createOutput3D();
+			getTexture3D();
+			return;
+		}
+		if ( !getParameters() ) return;
 		initCalibration();
-		itext = IJ.createImage(""+texture, "32-bit black", imp.getWidth(), imp.getHeight(), 1);
+		if ( !makeMask() ) return;
+		createOutput();
 		getTexture();
 
 	}
@@ -0,0 +1,176 @@
+package texter;
+
+/**
+ * \brief Sliding window GLCM for a set of offsets (angle, distance).
+ *
+ * All offsets are accumulated in the same scan of the window: each origin pixel is read once
+ * and paired with its neighbor for every offset. One GLCMTexture (counts and feature sums) is kept by offset.
+ * */
+public class MultiGLCMTexture
+{
+	GLCMTexture[] glcms;
+	int noff;
+	// quantized image read by the sliding window, can be shared (read-only) between several MultiGLCMTexture
+	byte[] pixels;
+	int width;
+	byte[] mask; // pixels to use (!= 0), null for all
+	int winx = -1, winy = -1, winsize = -1;
+	// range of origin pixels (relative to window) for which the pair is inside the window, by offset
+	int[] ox0, ox1, oy0, oy1;
+	int[] xlo, xhi; // columns to scan, by offset
+	double[] offres;
+
+	/** \brief Offsets given by their angle (radian) and distance (pixels) */
+	public MultiGLCMTexture( double[] angles, double[] dists, int nlev )
+	{
+		noff = angles.length;
+		glcms = new GLCMTexture[noff];
+		for ( int o = 0; o < noff; o++ )
+			glcms[o] = new GLCMTexture( angles[o], dists[o], nlev );
+		ox0 = new int[noff];
+		ox1 = new int[noff];
+		oy0 = new int[noff];
+		oy1 = new int[noff];
+		xlo = new int[noff];
+		xhi = new int[noff];
+	}
+
+	/** \brief Image (quantized levels, see GLCMTexture.quantize) on which the sliding window moves */
+	public void setImage( byte[] lev, int w )
+	{
+		pixels = lev;
+		width = w;
+		resetWindow();
+	}
+
+	/** \brief Only count the pairs with both pixels inside the mask (one byte by pixel, != 0 inside), null for the whole image */
+	public void setMask( byte[] msk )
+	{
+		mask = msk;
+		resetWindow();
+	}
+
+	/** \brief Empty all the co-occurrence histograms */
+	public void resetWindow()
+	{
+		for ( int o = 0; o < noff; o++ )
+			glcms[o].resetWindow();
+		winx = -1;
+		winy = -1;
+	}
+
+	/** \brief Move the sliding window to (wx, wy).
+	 * If the window only moved right on the same row, only the leaving and entering columns are updated,
+	 * otherwise the histograms are rebuilt. */
+	public void moveWindow( int wx, int wy, int wsize )
+	{
+		// pairs are counted from their origin pixel
+		int minrange = wsize;
+		for ( int o = 0; o < noff; o++ )
+		{
+			int dx = glcms[o].dx;
+			int dy = glcms[o].dy;
+			ox0[o] = Math.max(0, -dx);
+			ox1[o] = wsize - Math.max(0, dx);
+			oy0[o] = wy + Math.max(0, -dy);
+			oy1[o] = wy + wsize - Math.max(0, dy);
+			if ( ox1[o] > ox0[o] ) minrange = Math.min( minrange, ox1[o]-ox0[o] );
+		}
+
+		if ( wy == winy && wsize == winsize && wx >= winx && (wx-winx) < minrange )
+		{
+			int shift = wx - winx;
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = winx + ox0[o];
+				xhi[o] = winx + Math.min( ox0[o]+shift, ox1[o] );
+			}
+			scanWindow( -1 );
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = winx + Math.max( ox1[o], ox0[o] );
+				xhi[o] = winx + Math.max( ox1[o], ox0[o] ) + ((ox1[o] > ox0[o]) ? shift : 0);
+			}
+			scanWindow( 1 );
+		}
+		else
+		{
+			resetWindow();
+			for ( int o = 0; o < noff; o++ )
+			{
+				xlo[o] = wx + ox0[o];
+				xhi[o] = wx + ox1[o];
+			}
+			scanWindow( 1 );
+		}
+		winx = wx;
+		winy = wy;
+		winsize = wsize;
+	}
+
+	/** \brief Add (sign=1) or remove (sign=-1) the pairs starting in columns xlo-xhi and rows oy0-oy1 of each offset.
+	 * The union of the ranges is scanned once, each origin is checked against the range of each offset */
+	void scanWindow( int sign )
+	{
+		int x0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE;
+		int y0 = Integer.MAX_VALUE, y1 = Integer.MIN_VALUE;
+		for ( int o = 0; o < noff; o++ )
+		{
+			if ( xhi[o] <= xlo[o] || oy1[o] <= oy0[o] ) continue;
+			x0 = Math.min( x0, xlo[o] );
+			x1 = Math.max( x1, xhi[o] );
+			y0 = Math.min( y0, oy0[o] );
+			y1 = Math.max( y1, oy1[o] );
+		}
+
+		for ( int y = y0; y < y1; y++ )
+		{
+			int off = y*width;
+			for ( int x = x0; x < x1; x++ )
+			{
+				int i = 0xff & pixels[off+x];
+				if ( i == 0 ) continue;
+				if ( mask != null && mask[off+x] == 0 ) continue;
+				for ( int o = 0; o < noff; o++ )
+				{
+					if ( x >= xlo[o] && x < xhi[o] && y >= oy0[o] && y < oy1[o] )
+					{
+						GLCMTexture glcm = glcms[o];
+						int neigh = off + x + glcm.dy*width + glcm.dx;
+						if ( mask != null && mask[neigh] == 0 ) continue;
+						glcm.addPair( i, 0xff & pixels[neigh], sign );
+					}
+				}
+			}
+		}
+	}
+
+	/** \brief Textures of the current window averaged over the offsets that have pairs in the window 
+	 * (none if the distance is not smaller than the window), written in res[0..nf-1]. NaN if no offset has pairs (empty window).
+	 * If res is long enough, followed by the textures of each offset o in res[(o+1)*nf..] (NaN for an offset without pairs) */
+	public void getWindowFeatures( GLCMFeature[] feats, double[] res )
+	{
+		int nf = feats.length;
+		if ( offres == null || offres.length != nf ) offres = new double[nf];
+		boolean peroff = ( res.length >= nf*(noff+1) );
+		for ( int f = 0; f < nf; f++ )
+			res[f] = 0;
+		int nvalid = 0;
+		for ( int o = 0; o < noff; o++ )
+		{
+			boolean valid = ( glcms[o].npairs > 0 );
+			if ( valid )
+			{
+				glcms[o].getWindowFeatures( feats, offres );
+				nvalid++;
+			}
+			for ( int f = 0; f < nf; f++ )
+			{
+				if ( valid ) res[f] += offres[f];
+				if ( peroff ) res[(o+1)*nf+f] = valid ? offres[f] : Double.NaN;
+			}
+		}
+		for ( int f = 0; f < nf; f++ )
+			res[f] = ( nvalid > 0 ) ? res[f]/nvalid : Double.NaN;
+	}
+}
@@ -0,0 +1,125 @@
+package texter;
+
+import java.util.Arrays;
+
+/**
+ * \brief Sparse co-occurrence matrix: only the (i,j) pairs present in the window are stored.
+ *
+ * Open addressing hash table of int keys (i*nlevels+j) to int counts,
+ * with the list of used slots so that clearing and visiting the non-zero elements are proportional to their number.
+ * */
+public class SparseGLCM
+{
+	int nlevels;
+	int[] keys;
+	int[] vals;
+	int[] used; // index of the filled slots
+	int nused;
+	int mask;
+
+	public SparseGLCM( int nlev )
+	{
+		nlevels = nlev;
+		allocate( 1024 );
+	}
+
+	void allocate( int capacity )
+	{
+		keys = new int[capacity];
+		vals = new int[capacity];
+		used = new int[capacity];
+		Arrays.fill( keys, -1 );
+		nused = 0;
+		mask = capacity - 1;
+	}
+
+	/** \brief Remove all elements */
+	public void clear()
+	{
+		for ( int k = 0; k < nused; k++ )
+		{
+			keys[used[k]] = -1;
+			vals[used[k]] = 0;
+		}
+		nused = 0;
+	}
+
+	int slot( int key )
+	{
+		int h = key * 0x9E3779B1;
+		int s = (h ^ (h >>> 16)) & mask;
+		while ( keys[s] != -1 && keys[s] != key )
+			s = (s+1) & mask;
+		return s;
+	}
+
+	/** \brief Add inc to element (i,j) and return its previous count */
+	public int add( int i, int j, int inc )
+	{
+		int key = i*nlevels + j;
+		int s = slot( key );
+		if ( keys[s] == -1 )
+		{
+			if ( 2*(nused+1) > keys.length )
+			{
+				rehash();
+				s = slot( key );
+			}
+			keys[s] = key;
+			used[nused++] = s;
+		}
+		int c = vals[s];
+		vals[s] = c + inc;
+		return c;
+	}
+
+	/** \brief Rebuild the table without the elements that went back to 0, growing it if still too full */
+	void rehash()
+	{
+		int[] okeys = keys;
+		int[] ovals = vals;
+		int[] oused = used;
+		int n = nused;
+		int nonzero = 0;
+		for ( int k = 0; k < n; k++ )
+			if ( ovals[oused[k]] != 0 ) nonzero++;
+		int capacity = keys.length;
+		while ( 4*(nonzero+1) > capacity ) capacity *= 2;
+		allocate( capacity );
+		for ( int k = 0; k < n; k++ )
+		{
+			int o = oused[k];
+			if ( ovals[o] != 0 )
+			{
+				int s = slot( okeys[o] );
+				keys[s] = okeys[o];
+				vals[s] = ovals[o];
+				used[nused++] = s;
+			}
+		}
+	}
+
+	/** \brief Number of stored elements (some may have a null count) */
+	public int size()
+	{
+		return nused;
+	}
+
+	/** \brief Row (i) of the k-th stored element */
+	public int getI( int k )
+	{
+		return keys[used[k]] / nlevels;
+	}
+
+	/** \brief Column (j) of the k-th stored element */
+	public int getJ( int k )
+	{
+		return keys[used[k]] % nlevels;
+	}
+
+	/** \brief Count of the k-th stored element */
+	public int getCount( int k )
+	{
+		return vals[used[k]];
+	}
+}
@@ -0,0 +1,140 @@
+package imoran;
+
+import ij.process.*;
+
+/**
+ * \brief Moran's index sums by convolution with the disk of neighbors, computed by FFT (Hartley transform).
+ *
+ * The sum over the neighbors of the centered values (v-mean, 0 outside the Roi) and the number of neighbors inside the Roi
+ * are the convolutions of the masked values and of the mask with the disk kernel.
+ * The transforms of the values and of the mask are calculated once, then each distance only costs the transform of its kernel
+ * and two products/inverse transforms: O(N log N) whatever the distance.
+ * Transforms are in float precision (ImageJ FHT), so sums are accurate to about 1e-6 relative.
+ * */
+public class FFTMoran
+{
+	MaskedImage mi;
+	int size; // power of 2, at least the padded image size
+	FHT zfht, mfht;
+	FHT qfht; // transform of the squared values, only for the Geary statistic
+	int maxrad;
+
+	/** \brief Transforms of mi values and mask. mi must be padded by at least the radius of the largest kernel used */
+	public FFTMoran( MaskedImage mi )
+	{
+		this.mi = mi;
+		maxrad = mi.pad;
+		size = 2;
+		while ( size < Math.max(mi.width, mi.height) ) size *= 2;
+		FloatProcessor z = new FloatProcessor( size, size );
+		FloatProcessor m = new FloatProcessor( size, size );
+		float[] zpix = (float[]) z.getPixels();
+		float[] mpix = (float[]) m.getPixels();
+		for ( int y = 0; y < mi.height; y++ )
+		{
+			for ( int x = 0; x < mi.width; x++ )
+			{
+				zpix[y*size+x] = (float) mi.values[y*mi.width+x];
+				mpix[y*size+x] = mi.mask[y*mi.width+x];
+			}
+		}
+		zfht = new FHT( z );
+		zfht.transform();
+		mfht = new FHT( m );
+		mfht.transform();
+	}
+
+	/** \brief Transform of the kernel, its origin at (0,0) (negative offsets wrapped) */
+	FHT kernelTransform( NeighborKernel kernel )
+	{
+		FloatProcessor k = new FloatProcessor( size, size );
+		float[] kpix = (float[]) k.getPixels();
+		for ( int m = 0; m < kernel.size(); m++ )
+			kpix[ ((kernel.dy[m]+size)%size)*size + (kernel.dx[m]+size)%size ] = 1;
+		FHT kfht = new FHT( k );
+		kfht.transform();
+		return kfht;
+	}
+
+	/** \brief Convolution of the image of transform fht by the kernel of transform kfht */
+	float[] convolve( FHT fht, FHT kfht )
+	{
+		FHT conv = fht.multiply( kfht );
+		conv.inverseTransform();
+		return (float[]) conv.getPixels();
+	}
+
+	/** \brief Index in the transforms of pixel p of the padded arrays */
+	int index( int p )
+	{
+		return (p/mi.width)*size + p%mi.width;
+	}
+
+	/** \brief Transform of the kernel of distance k */
+	FHT kernelTransform( double k )
+	{
+		NeighborKernel kernel = new NeighborKernel( k );
+		if ( kernel.getRadius() > maxrad )
+			throw new IllegalArgumentException( "Distance "+k+" larger than the image padding "+maxrad );
+		return kernelTransform( kernel );
+	}
+
+	/** \brief Sum over pairs of neighbors (distance <= k) of the products of centered values, and number of pairs */
+	public double[] getSums( double k )
+	{
+		FHT kfht = kernelTransform( k );
+		float[] cz = convolve( zfht, kfht );
+		float[] cm = convolve( mfht, kfht );
+		double num = 0;
+		double sumw = 0;
+		for ( int i = 0; i < mi.n; i++ )
+		{
+			int p = mi.inside[i];
+			num += mi.values[p]*cz[index(p)];
+			// neighbor counts are integers
+			sumw += Math.round( cm[index(p)] );
+		}
+		return new double[]{ num, sumw };
+	}
+
+	/** \brief Pair sums of the Moran, Geary and Getis-Ord statistics for the neighbors within distance k (see MaskedImage.getStatistics).
+	 * Also needs the convolution of the squared values, its transform is calculated at the first call */
+	public double[] getStatisticSums( double k )
+	{
+		if ( qfht == null )
+		{
+			FloatProcessor q = new FloatProcessor( size, size );
+			float[] qpix = (float[]) q.getPixels();
+			for ( int i = 0; i < mi.n; i++ )
+			{
+				int p = mi.inside[i];
+				qpix[index(p)] = (float) (mi.values[p]*mi.values[p]);
+			}
+			qfht = new FHT( q );
+			qfht.transform();
+		}
+		FHT kfht = kernelTransform( k );
+		float[] cz = convolve( zfht, kfht );
+		float[] cm = convolve( mfht, kfht );
+		float[] cq = convolve( qfht, kfht );
+		double[] sums = new double[4];
+		for ( int i = 0; i < mi.n; i++ )
+		{
+			int p = mi.inside[i];
+			int ind = index( p );
+			double z = mi.values[p];
+			double w = Math.round( cm[ind] );
+			sums[0] += z*cz[ind];
+			sums[1] += w;
+			sums[2] += z*w;
+			sums[3] += z*z*w - 2*z*cz[ind] + cq[ind];
+		}
+		return sums;
+	}
+
+	/** \brief Moran's index, Geary's C and Getis-Ord G for the neighbors within distance k */
+	public double[] getStatistics( double k )
+	{
+		return mi.getStatistics( getStatisticSums(k) );
+	}
+}
@@ -0,0 +1,120 @@
+package imoran;
+
+import ij.process.*;
+import ij.gui.*;
+import java.awt.*;
+
+/**
+ * \brief Pixels of an image inside a Roi, rasterized once.
+ *
+ * The values (minus their mean inside the Roi) and the mask are copied in arrays covering the Roi bounds
+ * plus a border of pad pixels, null outside the Roi: neighbors up to pad pixels away are read without bounds checking.
+ * Only the given processor is read, so each thread can build its own.
+ * */
+public class MaskedImage
+{
+	int width, height; // size of the padded arrays
+	int pad;
+	int x0, y0; // image position of the padded arrays origin
+	double[] values; // value - mean inside the Roi, 0 outside
+	byte[] mask; // 1 inside the Roi, 0 outside
+	int[] inside; // indexes of the pixels inside the Roi
+	int n;
+	double mean;
+
+	/** \brief Pixels of ip inside roi (whole image if roi is null), padded by pad pixels */
+	public MaskedImage( ImageProcessor ip, Roi roi, int pad )
+	{
+		this.pad = pad;
+		Rectangle rec = ( roi != null ) ? roi.getBounds() : new Rectangle( 0, 0, ip.getWidth(), ip.getHeight() );
+		ImageProcessor rmask = ( roi != null ) ? roi.getMask() : null;
+		x0 = rec.x - pad;
+		y0 = rec.y - pad;
+		width = rec.width + 2*pad;
+		height = rec.height + 2*pad;
+		values = new double[width*height];
+		mask = new byte[width*height];
+
+		int iw = ip.getWidth();
+		int ih = ip.getHeight();
+		double sum = 0;
+		n = 0;
+		for ( int y = 0; y < rec.height; y++ )
+		{
+			int iy = rec.y + y;
+			if ( iy < 0 || iy >= ih ) continue;
+			for ( int x = 0; x < rec.width; x++ )
+			{
+				int ix = rec.x + x;
+				if ( ix < 0 || ix >= iw ) continue;
+				if ( rmask != null && rmask.get(x, y) == 0 ) continue;
+				int p = (y+pad)*width + x + pad;
+				mask[p] = 1;
+				values[p] = ip.getf( ix, iy );
+				sum += values[p];
+				n++;
+			}
+		}
+		mean = ( n > 0 ) ? sum/n : 0;
+
+		inside = new int[n];
+		int k = 0;
+		for ( int p = 0; p < mask.length; p++ )
+		{
+			if ( mask[p] != 0 )
+			{
+				values[p] -= mean;
+				inside[k++] = p;
+			}
+		}
+	}
+
+	/** \brief Number of pixels inside the Roi */
+	public int getCount()
+	{
+		return n;
+	}
+
+	public double getMean()
+	{
+		return mean;
+	}
+
+	/** \brief Sum of the squared centered values */
+	public double getSumSq()
+	{
+		double sumsq = 0;
+		for ( int k = 0; k < n; k++ )
+			sumsq += values[inside[k]]*values[inside[k]];
+		return sumsq;
+	}
+
+	/** \brief Moran's I, Geary's C and global Getis-Ord G from the sums over all ordered pairs of neighbors (i,j):
+	 * sums[0] of z_i*z_j, sums[1] number of pairs, sums[2] of z_i, sums[3] of (z_i-z_j)^2, with z the centered values.
+	 * Getis-Ord products of raw values x = z + mean are expanded from these sums */
+	public double[] getStatistics( double[] sums )
+	{
+		return getStatistics( sums, n, mean, getSumSq() );
+	}
+
+	/** \brief Statistics from the pair sums (see above), for n pixels of given mean and sum of squared centered values */
+	public static double[] getStatistics( double[] sums, double n, double mean, double sumsq )
+	{
+		double num = sums[0];
+		double sumw = sums[1];
+		double moran = n/sumw * num/sumsq;
+		double geary = (n-1) * sums[3]/(2*sumw*sumsq);
+		double pairs = num + 2*mean*sums[2] + mean*mean*sumw;
+		double allpairs = (n*mean)*(n*mean) - (sumsq + n*mean*mean);
+		double getis = pairs/allpairs;
+		return new double[]{ moran, geary, getis };
+	}
+
+	/** \brief Center the values on another mean (e.g. of a whole stack) */
+	public void setMean( double m )
+	{
+		for ( int k = 0; k < n; k++ )
+			values[inside[k]] += mean - m;
+		mean = m;
+	}
+}
@@ -18,6 +18,7 @@ import ij.plugin.filter.*;
 import ij.measure.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.*;
 
 public class MoranIndex implements PlugIn
@@ -26,6 +27,22 @@ public class MoranIndex implements PlugIn
 	RoiManager rm;
 
 	double ksize = 10;
+	String[] methods = {"direct", "fft"};
+	String method = "direct";
+	boolean correlogram = false;
+	String distances = "1,2,5,10,20";
+	String[] modes = {"annuli", "cumulative"};
+	String mode = "annuli";
+	boolean local = false;
+	boolean zscore = false;
+	boolean allrois = false;
+	int npermut = 0;
+	long seed = 1;
+	// 3D: pixel sizes
+	double scalex = 1;
+	double scaley = 1;
+	double scalez = 1;
+	int nthreads = Prefs.getThreads();
 	
 	/** Be sure there s no calibration */
 	public void initCalibration()
@@ -48,78 +65,574 @@ public class MoranIndex implements PlugIn
 		GenericDialog gd = new GenericDialog("Options", IJ.getInstance() );
 		Font boldy = new Font("SansSerif", Font.BOLD, 12);
 		gd.addNumericField("kneighbor distance (pixel)", ksize, 1);
+		gd.addChoice("method (fft for large distances)", methods, method);
+		gd.addCheckbox("correlogram (index for each distance below)", correlogram);
+		gd.addStringField("distances (list, or min-max-step)", distances);
+		gd.addChoice("correlogram_neighbors", modes, mode);
+		gd.addNumericField("permutations (p-value, 0 for none, at least 2)", npermut, 0);
+		gd.addNumericField("random_seed", seed, 0);
+		gd.addCheckbox("all_rois (one result by Roi of the RoiManager)", allrois);
+		gd.addCheckbox("local_moran (LISA map)", local);
+		gd.addCheckbox("local_z-scores", zscore);
+		gd.addNumericField("threads", nthreads, 0);
 		gd.showDialog();
 		if (gd.wasCanceled()) return false;
 
 		ksize = gd.getNextNumber();
+		method = gd.getNextChoice();
+		correlogram = gd.getNextBoolean();
+		distances = gd.getNextString();
+		mode = gd.getNextChoice();
+		npermut = (int) gd.getNextNumber();
+		// the z-score needs the variance of at least 2 permutations
+		npermut = ( npermut > 0 ) ? Math.max( 2, npermut ) : 0;
+		seed = (long) gd.getNextNumber();
+		allrois = gd.getNextBoolean();
+		local = gd.getNextBoolean();
+		zscore = gd.getNextBoolean();
+		nthreads = Math.max( 1, (int) gd.getNextNumber() );
 		return true;
 	}
 
-	public double distance( int x1, int y1, int x2, int y2 )
+	/** \brief Dialog window of the 3D index: neighbors inside an ellipsoid, from the image scale */
+	public boolean getParameters3D()
 	{
-		return Math.sqrt( Math.pow(x1-x2,2) + Math.pow(y1-y2,2) );
+		GenericDialog gd = new GenericDialog("Options 3D", IJ.getInstance() );
+		Font boldy = new Font("SansSerif", Font.BOLD, 12);
+		gd.addNumericField("kneighbor distance (calibrated)", ksize, 2);
+		gd.addMessage("Images scale:", boldy);	
+		Calibration cal = imp.getCalibration();
+		if (cal == null ) 
+		{
+			cal = new Calibration(imp);
+		}
+		gd.addNumericField("In_x: 1 pixel =", cal.pixelWidth, 4);
+		gd.addNumericField("In_y: 1 pixel =", cal.pixelHeight, 4);
+		gd.addNumericField("In_z: 1 pixel =", cal.pixelDepth, 4);
+		gd.showDialog();
+		if (gd.wasCanceled()) return false;
+
+		ksize = gd.getNextNumber();
+		scalex = gd.getNextNumber();	
+		scaley = gd.getNextNumber();	
+		scalez = gd.getNextNumber();
+		return true;
 	}
 
-	public void calcIndex()
+	/** \brief Moran's I, Geary's C and Getis-Ord G of the pixels of mi (padded by at least ksize), from the sums accumulated in the same pass over the pairs.
+	 * The Roi is rasterized once in mi and the disk of neighbor offsets precomputed, so the neighbors are read by array indexing only.
+	 * For each pixel, the sums of the neighbor values, squared values and count are enough to get the pair sums of the three statistics */
+	public double[] calcStatistics( MaskedImage mi )
+	{
+		NeighborKernel kernel = new NeighborKernel( ksize );
+		int[] offs = kernel.getOffsets( mi.width );
+		double[] vals = mi.values;
+		byte[] mask = mi.mask;
+		double[] sums = new double[4];
+		for ( int k = 0; k < mi.n; k++ )
+		{
+			int p = mi.inside[k];
+			double vi = vals[p];
+			// values outside the Roi are 0, only the count needs the mask
+			double neigh = 0;
+			double neighsq = 0;
+			int nneigh = 0;
+			for ( int m = 0; m < offs.length; m++ )
+			{
+				double vj = vals[p+offs[m]];
+				neigh += vj;
+				neighsq += vj*vj;
+				nneigh += mask[p+offs[m]];
+			}
+			sums[0] += vi*neigh;
+			sums[1] += nneigh;
+			sums[2] += vi*nneigh;
+			sums[3] += vi*vi*nneigh - 2*vi*neigh + neighsq;
+		}
+		return mi.getStatistics( sums );
+	}
+
+	/** \brief Run work on nthr threads (in this one if only one) */
+	public void runThreads( Runnable work, int nthr )
 	{
-		double index = 0;
+		if ( nthr == 1 )
+			work.run();
+		else
+		{
+			Thread[] threads = ThreadUtil.createThreadArray( nthr );
+			for ( int t = 0; t < threads.length; t++ )
+				threads[t] = new Thread( work );
+			ThreadUtil.startAndJoin( threads );
+		}
+	}
+
+	/** \brief Permutation test of the index observed on mi: the values inside the Roi are shuffled npermut times 
+	 * and the index recalculated with the same neighbor offsets (the number of pairs and sum of squares don't change).
+	 * Each permutation has its own random generator, split in order from one seeded SplittableRandom, 
+	 * so the results only depend on the seed, not on the threads. npermut must be at least 2 (variance of the z-score). 
+	 * Returns the pseudo p-value (one-sided, in the direction of the observed index), the z-score and the mean of the permutations */
+	public double[] permutationTest( final MaskedImage mi, double observed, int nthr )
+	{
+		NeighborKernel kernel = new NeighborKernel( ksize );
+		final int[] offs = kernel.getOffsets( mi.width );
+		final int n = mi.n;
+		final double[] vals = new double[n];
 		double sumw = 0;
-		double sumsq = 0;
-		int n = 0;
+		for ( int k = 0; k < n; k++ )
+		{
+			int p = mi.inside[k];
+			vals[k] = mi.values[p];
+			for ( int m = 0; m < offs.length; m++ )
+				sumw += mi.mask[p+offs[m]];
+		}
+		final double norm = n/sumw/mi.getSumSq();
 
-		ImageProcessor ip = imp.getProcessor();	
-		Roi roi = rm.getRoi(0);
-		imp.setRoi(roi);
-		ImageStatistics mystat = imp.getAllStatistics();
-		double mu = mystat.mean; // mean value inside ROI
+		final SplittableRandom[] rngs = new SplittableRandom[npermut];
+		SplittableRandom root = new SplittableRandom( seed );
+		for ( int r = 0; r < npermut; r++ )
+			rngs[r] = root.split();
+		final double[] perms = new double[npermut];
+		final AtomicInteger next = new AtomicInteger(0);
+		Runnable work = new Runnable()
+		{
+			public void run()
+			{
+				double[] shuffled = new double[n];
+				double[] padded = new double[mi.values.length]; // 0 outside the Roi
+				for ( int r = next.getAndIncrement(); r < npermut; r = next.getAndIncrement() )
+				{
+					System.arraycopy( vals, 0, shuffled, 0, n );
+					SplittableRandom rng = rngs[r];
+					for ( int k = n-1; k > 0; k-- )
+					{
+						int l = rng.nextInt( k+1 );
+						double tmp = shuffled[k];
+						shuffled[k] = shuffled[l];
+						shuffled[l] = tmp;
+					}
+					for ( int k = 0; k < n; k++ )
+						padded[mi.inside[k]] = shuffled[k];
+					double num = 0;
+					for ( int k = 0; k < n; k++ )
+					{
+						int p = mi.inside[k];
+						double neigh = 0;
+						for ( int m = 0; m < offs.length; m++ )
+							neigh += padded[p+offs[m]];
+						num += padded[p]*neigh;
+					}
+					perms[r] = norm*num;
+				}
+			}
+		};
+		runThreads( work, nthr );
 
-		Rectangle rec = roi.getBounds();
-		// For each point inside the roi, xi
-		for ( int xi = rec.x; xi < (rec.x+rec.width); xi++ )
+		double mean = 0;
+		for ( int r = 0; r < npermut; r++ )
+			mean += perms[r]/npermut;
+		double var = 0;
+		int extreme = 0;
+		for ( int r = 0; r < npermut; r++ )
+		{
+			var += (perms[r]-mean)*(perms[r]-mean)/(npermut-1.0);
+			if ( (observed >= mean && perms[r] >= observed) || (observed < mean && perms[r] <= observed) ) extreme++;
+		}
+		return new double[]{ (extreme+1.0)/(npermut+1.0), (observed-mean)/Math.sqrt(var), mean };
+	}
+
+	/** \brief Correlogram distances, sorted: a list, or min-max-step. null if not readable */
+	public double[] parseDistances()
+	{
+		String[] vals = Tools.split( distances, " ,;" );
+		String[] range = Tools.split( distances, "-" );
+		double[] dists;
+		if ( vals.length == 1 && range.length == 3 )
+		{
+			double min = Tools.parseDouble( range[0] );
+			double max = Tools.parseDouble( range[1] );
+			double dstep = Tools.parseDouble( range[2] );
+			if ( Double.isNaN(min) || Double.isNaN(max) || !(dstep > 0) ) return null;
+			int nd = (int) Math.floor( (max-min)/dstep + 1e-9 ) + 1;
+			dists = new double[nd];
+			for ( int b = 0; b < nd; b++ )
+				dists[b] = min + b*dstep;
+		}
+		else
+		{
+			dists = new double[vals.length];
+			for ( int b = 0; b < vals.length; b++ )
+			{
+				dists[b] = Tools.parseDouble( vals[b] );
+				if ( Double.isNaN(dists[b]) ) return null;
+			}
+		}
+		Arrays.sort( dists );
+		if ( dists.length == 0 || dists[0] <= 0 ) return null;
+		return dists;
+	}
+
+	/** \brief Moran's index for each distance of dists (sorted), in one pass over the pairs of pixels. 
+	 * Each pair is binned by its distance: neighbors are the pixels in the annulus between the previous distance and this one,
+	 * or (cumulative mode) in the whole disk. 
+	 * With the fft method, the disk sums of each distance are calculated by convolution.
+	 * Returns the indexes and the number of pairs of each distance */
+	public double[][] calcCorrelogram( ImageProcessor ip, Roi roi, double[] dists )
+	{
+		int nd = dists.length;
+		double[] num = new double[nd];
+		double[] npairs = new double[nd];
+		boolean cumul = mode.equals("cumulative");
+		MaskedImage mi;
+		if ( method.equals("fft") )
 		{
-			for ( int yi = rec.y; yi < (rec.y+rec.height); yi++ )
+			mi = new MaskedImage( ip, roi, (int) Math.floor(dists[nd-1]) );
+			FFTMoran fm = new FFTMoran( mi );
+			for ( int b = 0; b < nd; b++ )
 			{
-				if ( roi.contains(xi,yi) )
+				double[] sums = fm.getSums( dists[b] );
+				num[b] = sums[0];
+				npairs[b] = sums[1];
+			}
+			// disks to annuli
+			for ( int b = nd-1; b > 0 && !cumul; b-- )
+			{
+				num[b] -= num[b-1];
+				npairs[b] -= npairs[b-1];
+			}
+		}
+		else
+		{
+			NeighborKernel kernel = new NeighborKernel( dists[nd-1] );
+			mi = new MaskedImage( ip, roi, kernel.getRadius() );
+			int[] offs = kernel.getOffsets( mi.width );
+			int[] bins = kernel.getBins( dists );
+			double[] vals = mi.values;
+			byte[] mask = mi.mask;
+			for ( int k = 0; k < mi.n; k++ )
+			{
+				int p = mi.inside[k];
+				double vi = vals[p];
+				for ( int m = 0; m < offs.length; m++ )
 				{
-					n++;
-					double vi = ip.getPixel(xi,yi);
-							sumsq += Math.pow(vi-mu,2);
-					
-					// Look for neighboring pixels inside ROI
-					for ( int xj = (int) Math.max(rec.x, xi-ksize-1); xj <= (int) Math.min(rec.x+rec.width, xi+ksize+1); xj++ )
-				{	
-				for ( int yj = (int) Math.max(rec.y, yi-ksize-1); yj <= (int) Math.min(rec.y+rec.height, yi+ksize+1); yj++ )
+					num[bins[m]] += vi*vals[p+offs[m]];
+					npairs[bins[m]] += mask[p+offs[m]];
+				}
+			}
+			// annuli to disks
+			for ( int b = 1; b < nd && cumul; b++ )
+			{
+				num[b] += num[b-1];
+				npairs[b] += npairs[b-1];
+			}
+		}
+
+		double sumsq = mi.getSumSq();
+		double[] index = new double[nd];
+		for ( int b = 0; b < nd; b++ )
+			index[b] = mi.n/npairs[b] * num[b]/sumsq;
+		return new double[][]{ index, npairs };
+	}
+
+	/** \brief Show the correlogram in a ResultsTable and a plot */
+	public void showCorrelogram( double[] dists, double[][] res )
+	{
+		ResultsTable rt = new ResultsTable();
+		for ( int b = 0; b < dists.length; b++ )
+		{
+			rt.incrementCounter();
+			rt.addValue("Distance", dists[b]);
+			rt.addValue("MoranIndex", res[0][b]);
+			rt.addValue("NPairs", res[1][b]);
+		}
+		rt.show("Moran correlogram");
+		Plot plot = new Plot("Moran correlogram", "Distance (pixels)", "Moran index");
+		plot.add("connected circle", dists, res[0]);
+		plot.show();
+	}
+
+	/** \brief Local Moran's index (LISA, Anselin 1995) of each pixel of ip inside roi: I_i = z_i/m2 * sum_j w_ij z_j,
+	 * and its z-score under randomization if asked (second slice). 0 outside the Roi.
+	 * Each pixel term is independent: bands of rows are shared between the threads */
+	public ImagePlus calcLocalIndex( ImageProcessor ip, Roi roi )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		NeighborKernel kernel = new NeighborKernel( ksize );
+		final MaskedImage mi = new MaskedImage( ip, roi, kernel.getRadius() );
+		final int[] offs = kernel.getOffsets( mi.width );
+		final float[] lisa = new float[width*height];
+		final float[] zs = zscore ? new float[width*height] : null;
+
+		final int n = mi.n;
+		double sumsq = 0, sum4 = 0;
+		for ( int k = 0; k < n; k++ )
+		{
+			double v2 = mi.values[mi.inside[k]]*mi.values[mi.inside[k]];
+			sumsq += v2;
+			sum4 += v2*v2;
+		}
+		final double m2 = sumsq/n;
+		final double b2 = (sum4/n)/(m2*m2); // kurtosis, for the variance under randomization
+
+		final int rows = mi.height - 2*mi.pad;
+		final int band = Math.max( 1, rows/(4*nthreads) );
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Runnable work = new Runnable()
+		{
+			public void run()
+			{
+				double[] vals = mi.values;
+				byte[] mask = mi.mask;
+				for ( int b = next.getAndAdd(band); b < rows; b = next.getAndAdd(band) )
 				{
-					// exclude outside ROI and self pixel
-					if ( roi.contains(xj,yj) && ((xi!=xj)||(yi!=yj)))
+					int e = Math.min( rows, b+band );
+					for ( int r = b; r < e; r++ )
 					{
-						// inside neighboring
-						if ( distance( xi,yi, xj, yj) <= ksize )
+						int y = r + mi.pad;
+						int iy = mi.y0 + y;
+						if ( iy < 0 || iy >= height ) continue;
+						for ( int x = mi.pad; x < mi.width-mi.pad; x++ )
 						{
-							sumw += 1;
-							double vj = ip.getPixel(xj,yj);
-							index += (vi-mu)*(vj-mu);
-						}				
+							int p = y*mi.width + x;
+							if ( mask[p] == 0 ) continue;
+							double neigh = 0;
+							int wi = 0;
+							for ( int m = 0; m < offs.length; m++ )
+							{
+								neigh += vals[p+offs[m]];
+								wi += mask[p+offs[m]];
+							}
+							double ii = vals[p]/m2 * neigh;
+							int ind = iy*width + mi.x0 + x;
+							lisa[ind] = (float) ii;
+							if ( zs != null )
+							{
+								double expect = -wi/(n-1.0);
+								double var = wi*(n-b2)/(n-1.0) + ((double)wi*wi-wi)*(2*b2-n)/((n-1.0)*(n-2.0)) - (double)wi*wi/((n-1.0)*(n-1.0));
+								zs[ind] = (float) ( (ii-expect)/Math.sqrt(var) );
+							}
+						}
 					}
+					IJ.showProgress( done.addAndGet(e-b), rows );
 				}
 			}
+		};
+		runThreads( work, nthreads );
+
+		ImageStack stack = new ImageStack( width, height );
+		stack.addSlice( "LocalMoran", new FloatProcessor(width, height, lisa, null) );
+		if ( zs != null )
+			stack.addSlice( "LocalMoranZScore", new FloatProcessor(width, height, zs, null) );
+		ImagePlus res = new ImagePlus( "LocalMoran_k"+IJ.d2s(ksize, 1), stack );
+		IJ.resetMinAndMax( res );
+		return res;
+	}
+
+	/** \brief Masked slice z (0-based) of the current channel and frame */
+	MaskedImage getSlice( ImageStack stack, int z, Roi roi, int pad )
+	{
+		return new MaskedImage( stack.getProcessor( imp.getStackIndex(imp.getChannel(), z+1, imp.getFrame()) ), roi, pad );
+	}
+
+	/** \brief 3D Moran's I, Geary's C and Getis-Ord G of the current channel and frame, roi (null for all) applied to every slice.
+	 * Neighbors are the voxels within the ellipsoid of radius ksize (calibrated, see NeighborKernel).
+	 * A first pass over the slices gets the mean, then the slices are streamed through a slab of the 2*kz+1 slices
+	 * reached by the kernel around the current one: each slice is read and masked once, and dropped once out of reach */
+	public double[] calcStatistics3D( Roi roi )
+	{
+		NeighborKernel kernel = new NeighborKernel( ksize, scalex, scaley, scalez );
+		int kz = kernel.getRadiusZ();
+		int pad = kernel.getRadius();
+		ImageStack stack = imp.getStack();
+		int nz = imp.getNSlices();
+
+		double sum = 0;
+		double n = 0;
+		for ( int z = 0; z < nz; z++ )
+		{
+			MaskedImage mi = getSlice( stack, z, roi, 0 );
+			sum += mi.getMean()*mi.getCount();
+			n += mi.getCount();
+		}
+		double mean = sum/n;
+
+		int nslab = 2*kz+1;
+		MaskedImage[] slab = new MaskedImage[nslab]; // slice z in slab[z%nslab]
+		int[][] offs = null;
+		double sumsq = 0;
+		double[] sums = new double[4];
+		for ( int z = 0; z < nz; z++ )
+		{
+			// slices z-kz..z+kz: load the entering ones, replacing the slot of the slice out of reach
+			for ( int zz = ( z == 0 ) ? 0 : z+kz; zz <= Math.min( z+kz, nz-1 ); zz++ )
+			{
+				slab[zz%nslab] = getSlice( stack, zz, roi, pad );
+				slab[zz%nslab].setMean( mean );
+			}
+			MaskedImage cur = slab[z%nslab];
+			if ( offs == null )
+			{
+				offs = new int[nslab][];
+				for ( int d = -kz; d <= kz; d++ )
+					offs[d+kz] = kernel.getOffsets( cur.width, d );
 			}
-		}	
+			sumsq += cur.getSumSq();
+			for ( int d = -kz; d <= kz; d++ )
+			{
+				if ( z+d < 0 || z+d >= nz ) continue;
+				MaskedImage neighs = slab[(z+d)%nslab];
+				double[] vals = neighs.values;
+				byte[] mask = neighs.mask;
+				int[] o = offs[d+kz];
+				for ( int k = 0; k < cur.n; k++ )
+				{
+					int p = cur.inside[k];
+					double vi = cur.values[p];
+					double neigh = 0;
+					double neighsq = 0;
+					int nneigh = 0;
+					for ( int m = 0; m < o.length; m++ )
+					{
+						double vj = vals[p+o[m]];
+						neigh += vj;
+						neighsq += vj*vj;
+						nneigh += mask[p+o[m]];
+					}
+					sums[0] += vi*neigh;
+					sums[1] += nneigh;
+					sums[2] += vi*nneigh;
+					sums[3] += vi*vi*nneigh - 2*vi*neigh + neighsq;
+				}
+			}
+			IJ.showProgress( z+1, nz );
+		}
+		return MaskedImage.getStatistics( sums, n, mean, sumsq );
 	}
-	index = n/sumw * index/sumsq;
-	
-	IJ.log("Moran's index, neighboring distance "+ksize+" pixels :"+index);
+
+	/** \brief Stack index of the plane of the Roi (hyperstack or stack position), current plane if it has none */
+	public int getRoiPlane( Roi roi )
+	{
+		if ( roi.hasHyperStackPosition() )
+			return imp.getStackIndex( roi.getCPosition(), roi.getZPosition(), roi.getTPosition() );
+		if ( roi.getPosition() > 0 && roi.getPosition() <= imp.getStackSize() )
+			return roi.getPosition();
+		return imp.getCurrentSlice();
+	}
+
+	/** \brief Moran's index of every Roi of the RoiManager, on its own plane, one row by Roi in a ResultsTable.
+	 * Rois are shared between the threads, each one copying the pixels of its Roi in its own arrays (MaskedImage),
+	 * the image is only read */
+	public ResultsTable calcAllIndexes( final Roi[] rois )
+	{
+		final int nrois = rois.length;
+		final ImageStack stack = imp.getStack();
+		final int[] planes = new int[nrois];
+		final double[][] stats = new double[nrois][];
+		final int[] npix = new int[nrois];
+		final double[] means = new double[nrois];
+		final double[] pvals = new double[nrois];
+		for ( int r = 0; r < nrois; r++ )
+			planes[r] = getRoiPlane( rois[r] );
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Runnable work = new Runnable()
+		{
+			public void run()
+			{
+				for ( int r = next.getAndIncrement(); r < nrois; r = next.getAndIncrement() )
+				{
+					ImageProcessor ip;
+					synchronized ( stack )
+					{
+						ip = stack.getProcessor( planes[r] );
+					}
+					MaskedImage mi = new MaskedImage( ip, rois[r], (int) Math.floor(ksize) );
+					npix[r] = mi.getCount();
+					means[r] = mi.getMean();
+					stats[r] = method.equals("fft") ? new FFTMoran( mi ).getStatistics( ksize ) : calcStatistics( mi );
+					if ( npermut > 0 ) pvals[r] = permutationTest( mi, stats[r][0], 1 )[0];
+					IJ.showProgress( done.incrementAndGet(), nrois );
+				}
+			}
+		};
+		runThreads( work, nthreads );
+
+		ResultsTable rt = new ResultsTable();
+		for ( int r = 0; r < nrois; r++ )
+		{
+			rt.incrementCounter();
+			rt.addValue("Roi", rois[r].getName() );
+			rt.addValue("Plane", planes[r]);
+			rt.addValue("NPixels", npix[r]);
+			rt.addValue("Mean", means[r]);
+			rt.addValue("MoranIndex", stats[r][0]);
+			rt.addValue("GearyC", stats[r][1]);
+			rt.addValue("GetisOrdG", stats[r][2]);
+			if ( npermut > 0 ) rt.addValue("PValue", pvals[r]);
+		}
+		return rt;
+	}
+
+	public void calcIndex()
+	{
+		if ( allrois )
+		{
+			calcAllIndexes( rm.getRoisAsArray() ).show("Moran indexes");
+			return;
+		}
+		if ( local )
+		{
+			calcLocalIndex( imp.getProcessor(), rm.getRoi(0) ).show();
+			return;
+		}
+		if ( correlogram )
+		{
+			double[] dists = parseDistances();
+			if ( dists == null )
+			{
+				IJ.error("Could not read the correlogram distances");
+				return;
+			}
+			showCorrelogram( dists, calcCorrelogram( imp.getProcessor(), rm.getRoi(0), dists ) );
+			return;
+		}
+
+		ImageProcessor ip = imp.getProcessor();
+		Roi roi = rm.getRoi(0);
+		MaskedImage mi = new MaskedImage( ip, roi, (int) Math.floor(ksize) );
+		double[] stats = method.equals("fft") ? new FFTMoran( mi ).getStatistics( ksize ) : calcStatistics( mi );
+		double index = stats[0];
+		IJ.log("Moran's index, neighboring distance "+ksize+" pixels :"+index);
+		IJ.log("Geary's C: "+stats[1]+", Getis-Ord G: "+stats[2]);
+		if ( npermut > 0 )
+		{
+			double[] test = permutationTest( mi, index, nthreads );
+			IJ.log("Permutation test ("+npermut+" permutations, seed "+seed+"): p-value "+test[0]+", z-score "+test[1]+", mean "+test[2]);
+		}
 	}
 
 	public void run(String arg)
 	{
 		imp = IJ.getImage();
 		rm = RoiManager.getInstance();
+		if ( arg.equals("3d") )
+		{
+			if ( !getParameters3D() ) return;
+			initCalibration();
+			Roi roi = ( rm != null && rm.getCount() > 0 ) ? rm.getRoi(0) : imp.getRoi();
+			double[] stats = calcStatistics3D( roi );
+			IJ.log("3D Moran's index, neighboring distance "+ksize+" :"+stats[0]);
+			IJ.log("Geary's C: "+stats[1]+", Getis-Ord G: "+stats[2]);
+			return;
+		}
 		if ( rm == null )
 		{
 			IJ.error("Must have a Roi to analyze");
+			return;
 		}
-		getParameters();
+		if ( !getParameters() ) return;
 		initCalibration();
 		calcIndex();
 	}
@@ -0,0 +1,121 @@
+package imoran;
+
+/**
+ * \brief Offsets (dx, dy) of the neighbors of a pixel within a distance k, self excluded.
+ * In 3D, offsets (dx, dy, dz) within an ellipsoid, the distance being measured with the pixel sizes in x, y and z.
+ *
+ * Built once, then converted to linear offsets in an image of given width (see MaskedImage)
+ * so that neighbors are read by plain array indexing.
+ * */
+public class NeighborKernel
+{
+	double radius;
+	double sx = 1, sy = 1, sz = 0;
+	int rad; // radius in whole pixels (padding needed around the image)
+	int radz; // radius in slices, 0 in 2D
+	int[] dx, dy, dz;
+
+	/** \brief All offsets with dx*dx+dy*dy <= k*k, except (0,0) */
+	public NeighborKernel( double k )
+	{
+		this( k, 1, 1, 0 );
+	}
+
+	/** \brief All 3D offsets with (dx*scx)^2+(dy*scy)^2+(dz*scz)^2 <= k*k, except (0,0,0). 
+	 * k is in calibrated units, scz = 0 for 2D offsets only */
+	public NeighborKernel( double k, double scx, double scy, double scz )
+	{
+		radius = k;
+		sx = scx;
+		sy = scy;
+		sz = scz;
+		rad = (int) Math.max( Math.floor(k/sx), Math.floor(k/sy) );
+		radz = ( sz > 0 ) ? (int) Math.floor( k/sz ) : 0;
+		int n = 0;
+		for ( int z = -radz; z <= radz; z++ )
+			for ( int y = -rad; y <= rad; y++ )
+				for ( int x = -rad; x <= rad; x++ )
+					if ( inside(x, y, z) ) n++;
+		dx = new int[n];
+		dy = new int[n];
+		dz = new int[n];
+		n = 0;
+		for ( int z = -radz; z <= radz; z++ )
+		{
+			for ( int y = -rad; y <= rad; y++ )
+			{
+				for ( int x = -rad; x <= rad; x++ )
+				{
+					if ( inside(x, y, z) )
+					{
+						dx[n] = x;
+						dy[n] = y;
+						dz[n] = z;
+						n++;
+					}
+				}
+			}
+		}
+	}
+
+	boolean inside( int x, int y, int z )
+	{
+		double d2 = (x*sx)*(x*sx) + (y*sy)*(y*sy) + (z*sz)*(z*sz);
+		return (x != 0 || y != 0 || z != 0) && (d2 <= radius*radius);
+	}
+
+	/** \brief Number of neighbors */
+	public int size()
+	{
+		return dx.length;
+	}
+
+	/** \brief Largest offset in x or y */
+	public int getRadius()
+	{
+		return rad;
+	}
+
+	/** \brief Largest offset in z (slices) */
+	public int getRadiusZ()
+	{
+		return radz;
+	}
+
+	/** \brief Distance bin of each offset: b such that edges[b-1] < distance <= edges[b] (edges increasing, bin 0 from 0), 
+	 * -1 if farther than the last edge */
+	public int[] getBins( double[] edges )
+	{
+		int[] bins = new int[dx.length];
+		for ( int m = 0; m < dx.length; m++ )
+		{
+			double d2 = dx[m]*dx[m] + dy[m]*dy[m];
+			int b = 0;
+			while ( b < edges.length && d2 > edges[b]*edges[b] ) b++;
+			bins[m] = ( b < edges.length ) ? b : -1;
+		}
+		return bins;
+	}
+
+	/** \brief Offsets as indexes in an image of given width */
+	public int[] getOffsets( int width )
+	{
+		int[] offs = new int[dx.length];
+		for ( int m = 0; m < dx.length; m++ )
+			offs[m] = dy[m]*width + dx[m];
+		return offs;
+	}
+
+	/** \brief Offsets in the slice at dz=z from the pixel, as indexes in an image of given width */
+	public int[] getOffsets( int width, int z )
+	{
+		int n = 0;
+		for ( int m = 0; m < dx.length; m++ )
+			if ( dz[m] == z ) n++;
+		int[] offs = new int[n];
+		n = 0;
+		for ( int m = 0; m < dx.length; m++ )
+			if ( dz[m] == z ) offs[n++] = dy[m]*width + dx[m];
+		return offs;
+	}
+}
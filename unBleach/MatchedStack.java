@@ -0,0 +1,107 @@
+package unbleach;
+
+import ij.*;
+import ij.process.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * \brief Virtual stack of the frames of a source stack with their histogram matched to a reference CDF (one per frame, for hyperstacks).
+ *
+ * Frames are corrected when asked, so that writing this stack to a file reads, corrects and writes the frames one by one.
+ * As the frames are asked in order, the next ones are prepared in advance by a few threads:
+ * only these frames (and the one being written) are in memory.
+ * */
+public class MatchedStack extends VirtualStack
+{
+	UnBleach unbleach;
+	ImageStack source;
+	double[][] refCdfs; // reference of each frame, null for the reference frames
+	int nbins;
+	int nframes;
+	int ahead; // number of frames prepared in advance
+	ExecutorService pool;
+	Map<Integer, Future<ImageProcessor>> inflight = new HashMap<Integer, Future<ImageProcessor>>();
+	int submitted = 1;
+
+	public MatchedStack( UnBleach ub, ImageStack src, double[][] refs, int nthreads )
+	{
+		super( src.getWidth(), src.getHeight(), null, null );
+		unbleach = ub;
+		source = src;
+		refCdfs = refs;
+		nbins = ub.nbins;
+		nframes = src.getSize();
+		ahead = Math.max( 1, nthreads );
+		pool = Executors.newFixedThreadPool( ahead );
+	}
+
+	public int getSize()
+	{
+		return nframes;
+	}
+
+	public int size()
+	{
+		return nframes;
+	}
+
+	public String getSliceLabel( int n )
+	{
+		return source.getSliceLabel( n );
+	}
+
+	public int getBitDepth()
+	{
+		return ( nbins == 256 ) ? 8 : 16;
+	}
+
+	/** \brief Read frame n and match its histogram to its reference (reference frames unchanged) */
+	ImageProcessor correct( int n )
+	{
+		ImageProcessor ip;
+		synchronized ( source )
+		{
+			ip = source.getProcessor( n );
+		}
+		// in-memory source: don't modify it
+		if ( !source.isVirtual() ) ip = ip.duplicate();
+		if ( refCdfs[n-1] == null ) return ip;
+		double[] cdf = unbleach.getCDF( unbleach.getHistogram(ip, new int[nbins]) );
+		ip.applyTable( unbleach.getMapping(cdf, refCdfs[n-1], new int[nbins]) );
+		return ip;
+	}
+
+	/** \brief Corrected frame n. The following frames are submitted to the threads, up to 'ahead' frames in flight */
+	public ImageProcessor getProcessor( final int n )
+	{
+		while ( submitted < Math.min( n+ahead, nframes ) )
+		{
+			final int next = ++submitted;
+			inflight.put( next, pool.submit( new Callable<ImageProcessor>()
+			{
+				public ImageProcessor call()
+				{
+					return correct( next );
+				}
+			}) );
+		}
+		IJ.showProgress( n, nframes );
+		Future<ImageProcessor> frame = inflight.remove( n );
+		if ( frame == null ) return correct( n );
+		try
+		{
+			return frame.get();
+		}
+		catch ( Exception e )
+		{
+			throw new RuntimeException( "Could not correct frame "+n, e );
+		}
+	}
+
+	/** \brief Stop the threads */
+	public void close()
+	{
+		pool.shutdownNow();
+	}
+}
@@ -17,35 +17,68 @@ import ij.plugin.*;
 import ij.plugin.frame.*;
 import ij.plugin.filter.*;
 import ij.measure.*;
+import ij.io.*;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Channels;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.*;
 
 public class UnBleach implements PlugIn 
 {
 	ImagePlus imp;
 	int nbins;
+	int nthreads = Prefs.getThreads();
+	int nref = 0; // number of previous frames in the reference histogram, 0 for the first frame only
 
-	public void getOptions()
+	public boolean getOptions()
 	{
 		GenericDialog gd = new GenericDialog("");
-
+		gd.addNumericField("reference_frames (0: first frame, N: previous N frames)", nref, 0);
 		gd.showDialog();
-		if (gd.wasCanceled()) return;
+		if (gd.wasCanceled()) return false;
 
+		nref = Math.max( 0, (int) gd.getNextNumber() );
+		return true;
 	}
 
 	public double[] getCDF(int[] histo)
 	{
-		int ntot = 0;
+		return getCDF( histo, new double[histo.length] );
+	}
+
+	/** \brief Cumulated distribution of histo, written in cdf */
+	public double[] getCDF( int[] histo, double[] cdf )
+	{
+		long ntot = 0;
+		int nb = histo.length;
+		for ( int i = 0; i < nb; i++ )
+		{
+			ntot += histo[i];
+		}
+
+		long cumul = 0;
+		for ( int j = 0; j < nb; j++ )
+		{
+			cumul += histo[j];
+			cdf[j] = (double) cumul/ntot;
+		}
+		return cdf;
+	}
+
+	/** \brief Cumulated distribution of a histogram summed over several planes (long counts), written in cdf */
+	public double[] getCDF( long[] histo, double[] cdf )
+	{
+		long ntot = 0;
 		int nb = histo.length;
 		for ( int i = 0; i < nb; i++ )
 		{
 			ntot += histo[i];
 		}
 
-		double[] cdf = new double[nb];
-		int cumul = 0;
+		long cumul = 0;
 		for ( int j = 0; j < nb; j++ )
 		{
 			cumul += histo[j];
@@ -53,64 +86,494 @@ public class UnBleach implements PlugIn
 		}
 		return cdf;
 	}
-	
+
+	/** \brief Histogram of all the pixels of ip (8 or 16-bit), written in histo (nbins elements) */
+	public int[] getHistogram( ImageProcessor ip, int[] histo )
+	{
+		Arrays.fill( histo, 0 );
+		Object pix = ip.getPixels();
+		if ( pix instanceof byte[] )
+		{
+			byte[] bpix = (byte[]) pix;
+			for ( int k = 0; k < bpix.length; k++ )
+				histo[0xff & bpix[k]]++;
+		}
+		else
+		{
+			short[] spix = (short[]) pix;
+			for ( int k = 0; k < spix.length; k++ )
+				histo[0xffff & spix[k]]++;
+		}
+		return histo;
+	}
+
+	/** \brief Map each bin i of the current CDF to the last bin j of the reference CDF with refCdf[j] <= curCdf[i]
+	 * (or to the bin with the same value). Both CDFs are non-decreasing, so j only moves forward: 
+	 * one merge of the two CDFs, O(nbins) instead of a scan of the reference for each bin */
+	public int[] getMapping( double[] curCdf, double[] refCdf, int[] map )
+	{
+		int nb = curCdf.length;
+		int j = 0;
+		for ( int i = 0; i < nb; i++ )
+		{
+			while ( j < nb-1 && refCdf[j] < curCdf[i] ) j++;
+			// pix i -> map to j, or the bin before if not equal
+			int m = j;
+			if ( refCdf[m] != curCdf[i] ) m--;
+			map[i] = Math.max( m, 0 );
+		}
+		return map;
+	}
+
+	/** \brief Stack indexes of the planes corrected together, in time order: one series per (channel, z) along the frames
+	 * of a hyperstack, or per channel along the slices if there is only one frame (all the planes for a simple stack) */
+	public int[][] getSeries( ImagePlus image )
+	{
+		int nc = image.getNChannels();
+		int nz = image.getNSlices();
+		int nt = image.getNFrames();
+		boolean alongz = ( nt <= 1 );
+		int nser = alongz ? nc : nc*nz;
+		int len = alongz ? nz : nt;
+		int[][] series = new int[nser][len];
+		for ( int c = 1; c <= nc; c++ )
+		{
+			for ( int s = 0; s < nser/nc; s++ )
+			{
+				for ( int t = 0; t < len; t++ )
+				{
+					int ind = alongz ? image.getStackIndex( c, t+1, 1 ) : image.getStackIndex( c, s+1, t+1 );
+					series[s*nc+c-1][t] = ind;
+				}
+			}
+		}
+		return series;
+	}
+
+	/** \brief CDF of the first plane of each series, series shared between the threads */
+	public double[][] getReferenceCdfs( final ImageStack stack, final int[][] series )
+	{
+		final double[][] refCdfs = new double[series.length][];
+		final AtomicInteger next = new AtomicInteger(0);
+		runThreads( new Runnable()
+		{
+			public void run()
+			{
+				for ( int s = next.getAndIncrement(); s < series.length; s = next.getAndIncrement() )
+				{
+					ImageProcessor ip;
+					synchronized ( stack )
+					{
+						ip = stack.getProcessor( series[s][0] );
+					}
+					refCdfs[s] = getCDF( getHistogram(ip, new int[nbins]) );
+				}
+			}
+		});
+		return refCdfs;
+	}
+
+	/** \brief Match the histogram of every plane of each series (see getSeries) to the first plane of the series.
+	 * Once the reference CDFs are known, planes are independent: all the planes of all the series are shared between the threads,
+	 * read and modified directly in the stack (no slice change of the displayed image), 
+	 * each thread having its own histogram, CDF and mapping buffers */
 	public void matchHistrograms()
 	{
-		// Histogram to match to
-		imp.setSlice(1);
-		ImageProcessor ip = imp.getProcessor();
-		int[] refHisto = ip.getHistogram();
-		double[] refCdf = getCDF(refHisto);
-
-		// Change histograms of each slice
-		for ( int z = 2; z <= imp.getNSlices(); z++ )
-		{
-			IJ.showStatus("Histogram matching...  "+z+"/"+imp.getNSlices());
-			IJ.showProgress(z, imp.getNSlices());	
-			imp.setSlice(z);
-			ip = imp.getProcessor();
-			// current histogram to transform
-			int[] curHisto = ip.getHistogram();
-			double[] curCDF = getCDF(curHisto);
-
-			// find mapping
-			int[] map = new int[nbins];
-			for ( int i = 0; i < nbins; i++ )
+		final ImageStack stack = imp.getStack();
+		final int[][] series = getSeries( imp );
+		final int len = series[0].length;
+		final int nplanes = series.length*(len-1);
+		// Histograms to match to
+		final double[][] refCdfs = getReferenceCdfs( stack, series );
+
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Runnable work = new Runnable()
+		{
+			public void run()
 			{
-				int j = 0;
-				while (j < nbins && refCdf[j] < curCDF[i] )
+				int[] curHisto = new int[nbins];
+				double[] curCDF = new double[nbins];
+				int[] map = new int[nbins];
+				// Change histograms of each slice
+				for ( int k = next.getAndIncrement(); k < nplanes; k = next.getAndIncrement() )
 				{
-					j++;
+					int s = k/(len-1);
+					ImageProcessor ip;
+					synchronized ( stack )
+					{
+						ip = stack.getProcessor( series[s][1 + k%(len-1)] );
+					}
+					// current histogram to transform
+					getCDF( getHistogram(ip, curHisto), curCDF );
+					getMapping( curCDF, refCdfs[s], map );
+					ip.applyTable(map);
+					int nd = done.incrementAndGet();
+					IJ.showStatus("Histogram matching...  "+nd+"/"+nplanes);
+					IJ.showProgress(nd, nplanes);
 				}
-				// pix i -> map to j+1
-				if ( refCdf[j] != curCDF[i] ) j--;
-				map[i] = j;
 			}
-		
-			ip.applyTable(map);
-			imp.setProcessor(ip);
+		};
+		runThreads( work );
+		imp.updateAndDraw();
+	}
+
+	/** \brief Match the histogram of each plane of a series to a rolling reference: the sum of the histograms of the nref previous corrected planes.
+	 * The corrected histogram of a plane is its histogram remapped by its table, so the reference is updated in O(nbins)
+	 * by adding the newest corrected histogram and subtracting the oldest one, without reading the planes again.
+	 * If parallel, planes are processed by batches of nthreads: histograms and table application in parallel, mappings in order.
+	 * Else all is done in the calling thread */
+	public void matchSeriesRolling( final ImageStack stack, final int[] planes, boolean parallel )
+	{
+		final int len = planes.length;
+		int batch = parallel ? nthreads : 1;
+		int[][] window = new int[nref][]; // corrected histograms of the previous planes, plane t in t%nref
+		long[] refHisto = new long[nbins]; // sum of the window histograms, can exceed the int range
+		double[] refCdf = new double[nbins];
+		double[] curCdf = new double[nbins];
+		final int[][] histos = new int[batch][nbins];
+		final int[][] maps = new int[batch][nbins];
+
+		// the first plane is the first reference
+		ImageProcessor first;
+		synchronized ( stack )
+		{
+			first = stack.getProcessor( planes[0] );
+		}
+		window[0] = getHistogram( first, new int[nbins] );
+		for ( int i = 0; i < nbins; i++ )
+			refHisto[i] = window[0][i];
+		for ( int b = 1; b < len; b += batch )
+		{
+			final int start = b;
+			final int last = Math.min( len-1, b+batch-1 );
+			final AtomicInteger next = new AtomicInteger( start );
+			Runnable histograms = new Runnable()
+			{
+				public void run()
+				{
+					for ( int t = next.getAndIncrement(); t <= last; t = next.getAndIncrement() )
+					{
+						ImageProcessor ip;
+						synchronized ( stack )
+						{
+							ip = stack.getProcessor( planes[t] );
+						}
+						getHistogram( ip, histos[t-start] );
+					}
+				}
+			};
+			if ( parallel ) runThreads( histograms );
+			else histograms.run();
+
+			for ( int t = start; t <= last; t++ )
+			{
+				int[] histo = histos[t-start];
+				int[] map = maps[t-start];
+				getMapping( getCDF(histo, curCdf), getCDF(refHisto, refCdf), map );
+				// corrected histogram enters the window, replacing the oldest one
+				int slot = t%nref;
+				if ( window[slot] == null )
+					window[slot] = new int[nbins];
+				else
+				{
+					for ( int i = 0; i < nbins; i++ )
+						refHisto[i] -= window[slot][i];
+					Arrays.fill( window[slot], 0 );
+				}
+				for ( int i = 0; i < nbins; i++ )
+					window[slot][map[i]] += histo[i];
+				for ( int i = 0; i < nbins; i++ )
+					refHisto[i] += window[slot][i];
+			}
+
+			next.set( start );
+			Runnable apply = new Runnable()
+			{
+				public void run()
+				{
+					for ( int t = next.getAndIncrement(); t <= last; t = next.getAndIncrement() )
+					{
+						ImageProcessor ip;
+						synchronized ( stack )
+						{
+							ip = stack.getProcessor( planes[t] );
+						}
+						ip.applyTable( maps[t-start] );
+					}
+				}
+			};
+			if ( parallel ) runThreads( apply );
+			else apply.run();
+		}
+	}
+
+	/** \brief Rolling reference matching (see matchSeriesRolling) of each series of the image.
+	 * Planes of a series depend on the previous ones: a single series is parallelized by batches of planes,
+	 * several series are shared between the threads, each one corrected in order by one thread */
+	public void matchHistogramsRolling()
+	{
+		final ImageStack stack = imp.getStack();
+		final int[][] series = getSeries( imp );
+		if ( series.length == 1 )
+		{
+			IJ.showStatus("Histogram matching...");
+			matchSeriesRolling( stack, series[0], true );
 			imp.updateAndDraw();
+			return;
 		}
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		runThreads( new Runnable()
+		{
+			public void run()
+			{
+				for ( int s = next.getAndIncrement(); s < series.length; s = next.getAndIncrement() )
+				{
+					matchSeriesRolling( stack, series[s], false );
+					int nd = done.incrementAndGet();
+					IJ.showStatus("Histogram matching...  "+nd+"/"+series.length+" series");
+					IJ.showProgress( nd, series.length );
+				}
+			}
+		});
+		imp.updateAndDraw();
 	}
 
+	/** \brief Run work on nthreads threads (in this one if only one) */
+	public void runThreads( Runnable work )
+	{
+		if ( nthreads == 1 )
+			work.run();
+		else
+		{
+			Thread[] threads = ThreadUtil.createThreadArray( nthreads );
+			for ( int t = 0; t < threads.length; t++ )
+				threads[t] = new Thread( work );
+			ThreadUtil.startAndJoin( threads );
+		}
+	}
 
-	public void run(String arg) 
+	/** \brief Mean intensity of each plane of the stack, inside roi (rasterized once, null for the whole plane).
+	 * Planes are shared between the threads */
+	public double[] getMeans( final ImageStack stack, Roi roi )
+	{
+		final int nplanes = stack.getSize();
+		final int width = stack.getWidth();
+		final int height = stack.getHeight();
+		final Rectangle rec = ( roi != null ) ? roi.getBounds() : new Rectangle( 0, 0, width, height );
+		final ImageProcessor mask = ( roi != null ) ? roi.getMask() : null;
+		final double[] means = new double[nplanes];
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger(0);
+		runThreads( new Runnable()
+		{
+			public void run()
+			{
+				for ( int z = next.getAndIncrement(); z <= nplanes; z = next.getAndIncrement() )
+				{
+					ImageProcessor ip;
+					synchronized ( stack )
+					{
+						ip = stack.getProcessor(z);
+					}
+					double sum = 0;
+					int n = 0;
+					for ( int y = Math.max(0, rec.y); y < Math.min(height, rec.y+rec.height); y++ )
+					{
+						for ( int x = Math.max(0, rec.x); x < Math.min(width, rec.x+rec.width); x++ )
+						{
+							if ( mask != null && mask.get(x-rec.x, y-rec.y) == 0 ) continue;
+							sum += ip.getf( y*width+x );
+							n++;
+						}
+					}
+					means[z-1] = sum/n;
+					IJ.showProgress( done.incrementAndGet(), 2*nplanes );
+				}
+			}
+		});
+		return means;
+	}
+
+	/** \brief Gain of each plane to restore the intensity of the first one: 
+	 * ratio of the means, or ratio of the exponential decay a*exp(-b*t)+c fitted on the means */
+	public double[] getGains( double[] means, boolean exponential )
+	{
+		int n = means.length;
+		double[] gains = new double[n];
+		if ( !exponential )
+		{
+			for ( int t = 0; t < n; t++ )
+				gains[t] = means[0]/means[t];
+			return gains;
+		}
+		double[] times = new double[n];
+		for ( int t = 0; t < n; t++ )
+			times[t] = t;
+		CurveFitter cf = new CurveFitter( times, means );
+		cf.doFit( CurveFitter.EXP_WITH_OFFSET );
+		double[] params = cf.getParams();
+		IJ.log("Bleaching fit a*exp(-b*t)+c: a="+IJ.d2s(params[0], 4)+" b="+IJ.d2s(params[1], 6)+" c="+IJ.d2s(params[2], 4)+" R2="+IJ.d2s(cf.getRSquared(), 4));
+		for ( int t = 0; t < n; t++ )
+			gains[t] = cf.f( 0 )/cf.f( t );
+		return gains;
+	}
+
+	/** \brief Multiply each plane of the stack by its gain, planes shared between the threads */
+	public void applyGains( final ImageStack stack, final double[] gains )
+	{
+		final int nplanes = stack.getSize();
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger done = new AtomicInteger(nplanes);
+		runThreads( new Runnable()
+		{
+			public void run()
+			{
+				for ( int z = next.getAndIncrement(); z <= nplanes; z = next.getAndIncrement() )
+				{
+					ImageProcessor ip;
+					synchronized ( stack )
+					{
+						ip = stack.getProcessor(z);
+					}
+					ip.multiply( gains[z-1] );
+					IJ.showProgress( done.incrementAndGet(), 2*nplanes );
+				}
+			}
+		});
+	}
+
+	/** \brief Correct the bleaching with a simple ratio or exponential fit of the mean intensity (image Roi if any), 
+	 * separately for each series of the image (see getSeries): one pass to measure the means, one to rescale the planes */
+	public void correctByGain( boolean exponential )
+	{
+		Roi roi = imp.getRoi();
+		if ( roi != null && !roi.isArea() ) roi = null;
+		ImageStack stack = imp.getStack();
+		double[] means = getMeans( stack, roi );
+		// gains of each series relative to its first plane
+		int[][] series = getSeries( imp );
+		double[] gains = new double[means.length];
+		for ( int s = 0; s < series.length; s++ )
+		{
+			double[] smeans = new double[series[s].length];
+			for ( int t = 0; t < smeans.length; t++ )
+				smeans[t] = means[series[s][t]-1];
+			double[] sgains = getGains( smeans, exponential );
+			for ( int t = 0; t < smeans.length; t++ )
+				gains[series[s][t]-1] = sgains[t];
+		}
+		applyGains( stack, gains );
+		imp.updateAndDraw();
+	}
+
+
+	/** \brief Match the histograms of all frames of each series of source (see getSeries) to the first one, writing the corrected frames in the TIFF file path.
+	 * Frames are read, corrected and written one after the other (see MatchedStack), the movie is never loaded in memory.
+	 * The file is written through a buffered stream on a file channel */
+	public void matchHistogramsToFile( ImagePlus source, String path ) throws IOException
+	{
+		ImageStack stack = source.getStack();
+		int[][] series = getSeries( source );
+		double[][] refCdfs = getReferenceCdfs( stack, series );
+		// reference of each plane, none for the first plane of the series
+		double[][] planeRefs = new double[stack.getSize()][];
+		for ( int s = 0; s < series.length; s++ )
+			for ( int t = 1; t < series[s].length; t++ )
+				planeRefs[series[s][t]-1] = refCdfs[s];
+		MatchedStack matched = new MatchedStack( this, stack, planeRefs, nthreads );
+
+		FileInfo fi = new FileInfo();
+		fi.fileFormat = FileInfo.TIFF;
+		fi.fileType = ( nbins == 256 ) ? FileInfo.GRAY8 : FileInfo.GRAY16_UNSIGNED;
+		fi.width = stack.getWidth();
+		fi.height = stack.getHeight();
+		fi.nImages = stack.getSize();
+		fi.virtualStack = matched;
+		fi.description = new FileSaver( source ).getDescriptionString();
+		FileChannel channel = FileChannel.open( Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		OutputStream out = new BufferedOutputStream( Channels.newOutputStream(channel), 1<<20 );
+		try
+		{
+			new TiffEncoder( fi ).write( out );
+		}
+		finally
+		{
+			out.close();
+			matched.close();
+		}
+	}
+
+	/** \brief Streaming correction: from the current image if it is virtual, else from a TIFF file opened as virtual stack,
+	 * to a new TIFF file */
+	public void streamToFile()
+	{
+		ImagePlus source = WindowManager.getCurrentImage();
+		if ( source == null || !source.getStack().isVirtual() )
+		{
+			OpenDialog od = new OpenDialog("Time-lapse to correct (TIFF)");
+			if ( od.getFileName() == null ) return;
+			source = IJ.openVirtual( od.getPath() );
+			if ( source == null ) return;
+		}
+		if ( !setBins(source) ) return;
+		SaveDialog sd = new SaveDialog("Save corrected time-lapse", source.getShortTitle()+"_unbleached", ".tif");
+		if ( sd.getFileName() == null ) return;
+		try
+		{
+			matchHistogramsToFile( source, sd.getDirectory()+sd.getFileName() );
+			IJ.showStatus("Corrected time-lapse saved in "+sd.getFileName());
+		}
+		catch ( IOException e )
+		{
+			IJ.error("Could not write "+sd.getFileName()+": "+e.getMessage());
+		}
+	}
+
+	/** \brief Number of histogram bins from the image type, false if not 8 or 16-bit */
+	public boolean setBins( ImagePlus image )
 	{
-		imp = IJ.getImage();
 		nbins = 0;
-		//imp.hide();
-		if ( imp.getBitDepth() == 8 ) nbins = 256;
+		if ( image.getBitDepth() == 8 ) nbins = 256;
 		else
 		{
-			if ( imp.getBitDepth() == 16 ) nbins = 65536;
+			if ( image.getBitDepth() == 16 ) nbins = 65536;
 			else
 			{
 				IJ.error("Stack must be 8-bit or 16-bit");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public void run(String arg) 
+	{
+		if ( arg.equals("stream") )
+		{
+			streamToFile();
+			return;
+		}
+		imp = IJ.getImage();
+		if ( arg.equals("ratio") || arg.equals("exponential") )
+		{
+			if ( imp.getBitDepth() == 24 )
+			{
+				IJ.error("RGB stacks are not supported");
 				return;
 			}
+			correctByGain( arg.equals("exponential") );
+			return;
 		}
+		//imp.hide();
+		if ( !setBins(imp) ) return;
+		if ( !getOptions() ) return;
 
-		matchHistrograms();
+		if ( nref > 0 )
+			matchHistogramsRolling();
+		else
+			matchHistrograms();
 		//imp.show();
 	}		
 